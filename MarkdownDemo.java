@@ -8,7 +8,7 @@
 //DEPS org.commonmark:commonmark-ext-gfm-strikethrough:0.27.1
 //DEPS org.commonmark:commonmark-ext-autolink:0.27.1
 //DEPS org.commonmark:commonmark-ext-task-list-items:0.27.1
-//SOURCES src/main/java/dev/tamboui/widgets/Markdown.java
+//SOURCES src/main/java/dev/tamboui/widgets/*.java
 
 import dev.tamboui.buffer.Buffer;
 import dev.tamboui.widgets.Markdown;
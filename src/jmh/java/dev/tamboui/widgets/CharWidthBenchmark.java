@@ -0,0 +1,84 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.text.CharWidth;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of measuring the display width of a corpus, word by word as {@code printText} does.
+ * {@code lookup} asks {@link CharWidth} for every code point of every cluster; {@code measure}
+ * goes through {@link Graphemes#measure}, with its Latin-1 table and code point cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharWidthBenchmark {
+
+    @Param({Corpora.PROSE, Corpora.CJK})
+    public String corpus;
+
+    private String text;
+    private int[] words;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        text = Corpora.get(corpus);
+        int[] bounds = new int[text.length() * 2];
+        int count = 0;
+        for (int i = 0; i < text.length(); ) {
+            while (i < text.length() && Character.isWhitespace(text.charAt(i))) i++;
+            int end = i;
+            while (end < text.length() && !Character.isWhitespace(text.charAt(end))) end++;
+            if (end > i) {
+                bounds[count++] = i;
+                bounds[count++] = end;
+            }
+            i = end;
+        }
+        words = Arrays.copyOf(bounds, count);
+    }
+
+    @Benchmark
+    public int lookup() {
+        int width = 0;
+        for (int w = 0; w < words.length; w += 2) {
+            for (int g = words[w]; g < words[w + 1]; ) {
+                int next = Graphemes.next(text, g, words[w + 1]);
+                int cluster = 0;
+                for (int i = g; i < next; ) {
+                    int cp = text.codePointAt(i);
+                    cluster = Math.max(cluster, CharWidth.of(cp));
+                    i += Character.charCount(cp);
+                }
+                width += cluster;
+                g = next;
+            }
+        }
+        return width;
+    }
+
+    @Benchmark
+    public int measure() {
+        int width = 0;
+        for (int w = 0; w < words.length; w += 2) {
+            width += Graphemes.measure(text, words[w], words[w + 1]);
+        }
+        return width;
+    }
+}
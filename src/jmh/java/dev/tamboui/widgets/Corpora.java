@@ -0,0 +1,154 @@
+package dev.tamboui.widgets;
+
+import java.util.Random;
+
+/**
+ * Generated Markdown documents for the benchmarks, each one stressing a different part of the
+ * widget. They are built from a fixed seed, so every run and revision measures the same text.
+ */
+final class Corpora {
+
+    static final String PROSE = "prose";
+    static final String INLINE = "inline";
+    static final String TABLES = "tables";
+    static final String CODE = "code";
+    static final String MATH = "math";
+    static final String CJK = "cjk";
+
+    private static final String[] WORDS = {
+            "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "terminal", "widget", "of", "a",
+            "rendering", "layout", "buffer", "paragraph", "with", "some", "longer", "words", "and", "is"
+    };
+
+    private static final String[] CJK_WORDS = {
+            "漢字", "かな", "カタカナ", "한국어", "中文", "文字", "😀", "👍🏽", "🇫🇷", "👨‍👩‍👧", "café", "the", "of"
+    };
+
+    private Corpora() {
+    }
+
+    static String get(String name) {
+        Random random = new Random(42);
+        return switch (name) {
+            case PROSE -> prose(random);
+            case INLINE -> inline(random);
+            case TABLES -> tables(random);
+            case CODE -> code(random);
+            case MATH -> math(random);
+            case CJK -> cjk(random);
+            default -> throw new IllegalArgumentException("Unknown corpus: " + name);
+        };
+    }
+
+    private static String prose(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int p = 0; p < 300; p++) {
+            if (p % 10 == 0) {
+                sb.append("## Section ").append(p / 10).append("\n\n");
+            }
+            words(sb, random, WORDS, 40 + random.nextInt(60));
+            sb.append(".\n\n");
+        }
+        return sb.toString();
+    }
+
+    private static String inline(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int p = 0; p < 300; p++) {
+            for (int w = 0; w < 60; w++) {
+                String word = WORDS[random.nextInt(WORDS.length)];
+                switch (random.nextInt(8)) {
+                    case 0 -> sb.append("**").append(word).append("**");
+                    case 1 -> sb.append('*').append(word).append('*');
+                    case 2 -> sb.append('`').append(word).append('`');
+                    case 3 -> sb.append('[').append(word).append("](https://example.com/").append(word).append(')');
+                    case 4 -> sb.append("~~").append(word).append("~~");
+                    case 5 -> sb.append("***").append(word).append(" *nested*").append("***");
+                    default -> sb.append(word);
+                }
+                sb.append(' ');
+            }
+            sb.append("\n\n");
+        }
+        return sb.toString();
+    }
+
+    private static String tables(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int t = 0; t < 10; t++) {
+            sb.append("### Table ").append(t).append("\n\n|");
+            for (int c = 0; c < 6; c++) {
+                sb.append(" Column ").append(c).append(" |");
+            }
+            sb.append("\n|");
+            for (int c = 0; c < 6; c++) {
+                sb.append(c % 2 == 0 ? "---|" : ":---:|");
+            }
+            sb.append('\n');
+            for (int r = 0; r < 100; r++) {
+                sb.append('|');
+                for (int c = 0; c < 6; c++) {
+                    sb.append(' ');
+                    words(sb, random, WORDS, 1 + random.nextInt(c == 5 ? 12 : 3));
+                    sb.append(" |");
+                }
+                sb.append('\n');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String code(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int b = 0; b < 20; b++) {
+            sb.append("Listing ").append(b).append(":\n\n```java\n");
+            for (int l = 0; l < 200; l++) {
+                sb.append("    ".repeat(1 + random.nextInt(3)));
+                sb.append("result = compute(");
+                words(sb, random, WORDS, 1 + random.nextInt(random.nextInt(10) == 0 ? 40 : 8));
+                sb.append("); // line ").append(l).append('\n');
+            }
+            sb.append("```\n\n");
+        }
+        return sb.toString();
+    }
+
+    private static String math(Random random) {
+        String[] formulas = {
+                "\\frac{a}{b} + \\sqrt{x^2 + y^2}",
+                "\\sum_{i=0}^{n} \\alpha_i x^i",
+                "\\int_0^\\infty e^{-x} \\, dx = 1",
+                "\\lim_{n \\to \\infty} \\left(1 + \\frac{1}{n}\\right)^n = e",
+                "\\nabla \\cdot \\mathbf{E} = \\frac{\\rho}{\\varepsilon_0}"
+        };
+        StringBuilder sb = new StringBuilder();
+        for (int p = 0; p < 200; p++) {
+            words(sb, random, WORDS, 10);
+            sb.append(" `$").append(formulas[random.nextInt(formulas.length)]).append("$` ");
+            words(sb, random, WORDS, 10);
+            sb.append("\n\n```math\n");
+            for (int l = 0; l < 4; l++) {
+                sb.append(formulas[random.nextInt(formulas.length)]).append(" \\\\\n");
+            }
+            sb.append("```\n\n");
+        }
+        return sb.toString();
+    }
+
+    private static String cjk(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int p = 0; p < 300; p++) {
+            words(sb, random, CJK_WORDS, 40 + random.nextInt(40));
+            sb.append("。\n\n");
+        }
+        return sb.toString();
+    }
+
+    private static void words(StringBuilder sb, Random random, String[] words, int count) {
+        for (int w = 0; w < count; w++) {
+            if (w > 0) sb.append(' ');
+            sb.append(words[random.nextInt(words.length)]);
+        }
+    }
+}
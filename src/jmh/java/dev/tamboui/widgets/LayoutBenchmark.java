@@ -0,0 +1,65 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.buffer.Buffer;
+import dev.tamboui.layout.Rect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of laying out a whole, already parsed document. Each operation renders with the other of
+ * two identical widgets into an area with no rows: the layout and block caches belong to one
+ * widget, so everything is laid out again, while the parsed document is shared and nothing is
+ * painted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayoutBenchmark {
+
+    @Param({Corpora.PROSE, Corpora.INLINE, Corpora.TABLES, Corpora.CODE, Corpora.MATH, Corpora.CJK})
+    public String corpus;
+
+    @Param({"40", "80", "160"})
+    public int width;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private Markdown[] widgets;
+    private Markdown.State state;
+    private Buffer buffer;
+    private Rect area;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        widgets = new Markdown[]{
+                Markdown.builder().parallelLayout(parallel).build(),
+                Markdown.builder().parallelLayout(parallel).build()};
+        state = new Markdown.State(Corpora.get(corpus));
+        area = new Rect(0, 0, width, 0);
+        buffer = Buffer.empty(new Rect(0, 0, width, 1));
+    }
+
+    @Benchmark
+    public Markdown.State layout() {
+        next ^= 1;
+        widgets[next].render(area, buffer, state);
+        return state;
+    }
+}
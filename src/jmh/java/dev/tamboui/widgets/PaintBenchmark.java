@@ -0,0 +1,62 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.buffer.Buffer;
+import dev.tamboui.layout.Rect;
+import dev.tamboui.style.Style;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of painting one frame of an already laid out document, which is all a render does while
+ * the user scrolls. {@code scroll} is the position as a percentage of the maximum scroll offset.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaintBenchmark {
+
+    @Param({Corpora.PROSE, Corpora.INLINE, Corpora.TABLES, Corpora.CODE, Corpora.MATH, Corpora.CJK})
+    public String corpus;
+
+    @Param({"40", "80", "160"})
+    public int width;
+
+    @Param({"0", "50", "100"})
+    public int scroll;
+
+    private Markdown widget;
+    private Markdown.State state;
+    private Buffer buffer;
+    private Rect area;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        widget = new Markdown(Style.EMPTY);
+        state = new Markdown.State(Corpora.get(corpus));
+        area = new Rect(0, 0, width, 50);
+        buffer = Buffer.empty(area);
+        widget.render(area, buffer, state);
+        state.setScrollY(state.maxScrollY() * scroll / 100);
+    }
+
+    @Benchmark
+    public Buffer paint() {
+        widget.render(area, buffer, state);
+        return buffer;
+    }
+}
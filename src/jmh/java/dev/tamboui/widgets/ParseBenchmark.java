@@ -0,0 +1,46 @@
+package dev.tamboui.widgets;
+
+import org.commonmark.node.Node;
+import org.commonmark.parser.Parser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+/** Cost of parsing each corpus with the parser the widget uses by default. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({Corpora.PROSE, Corpora.INLINE, Corpora.TABLES, Corpora.CODE, Corpora.MATH, Corpora.CJK})
+    public String corpus;
+
+    private Parser parser;
+    private String text;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        parser = Markdown.parser(EnumSet.allOf(Markdown.Extension.class));
+        text = Corpora.get(corpus);
+    }
+
+    @Benchmark
+    public Node parse() {
+        return parser.parse(text);
+    }
+}
@@ -0,0 +1,192 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.buffer.Buffer;
+import dev.tamboui.buffer.Cell;
+import dev.tamboui.layout.Rect;
+import dev.tamboui.style.Style;
+import dev.tamboui.text.CharWidth;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Cost of laying out text with {@code RenderVisitor.printText}. {@code layout} renders the whole
+ * document, alternating between two widths, so the parsed document is reused but every call lays
+ * it out again.
+ * <p>
+ * {@code cells} isolates the step that turns text into cells, wrapped at 80 columns, so that
+ * {@code path} can compare the current scanner, {@code graphemes}, with the {@code regex} split
+ * it replaced, which allocated a string and a cell for every char. Both place the same corpus
+ * at the same width, so their {@code gc.alloc.rate.norm} can be compared directly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrintTextBenchmark {
+
+    @Param({"prose", "mixed"})
+    public String corpus;
+
+    @State(Scope.Thread)
+    public static class Split {
+        @Param({"regex", "graphemes"})
+        public String path;
+    }
+
+    private static final Pattern WORDS = Pattern.compile("(?<=[ \\t\\n\\r,.;:/?!-])|(?=[ \\t\\n\\r,.;:/?!-])");
+    private static final int WIDTH = 80;
+
+    private String text;
+    private StyleTable styles;
+    private final Cell[] row = new Cell[WIDTH * 2];
+    private Markdown widget;
+    private Markdown.State state;
+    private Buffer buffer;
+    private Rect wide;
+    private Rect narrow;
+    private boolean flip;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        text = corpus(corpus);
+        styles = new StyleTable(Style.EMPTY, Markdown.Theme.defaults());
+        widget = new Markdown(Style.EMPTY);
+        state = new Markdown.State(text);
+        wide = new Rect(0, 0, 80, 40);
+        narrow = new Rect(0, 0, 79, 40);
+        buffer = Buffer.empty(wide);
+    }
+
+    @Benchmark
+    public Markdown.State layout() {
+        flip = !flip;
+        widget.render(flip ? narrow : wide, buffer, state);
+        return state;
+    }
+
+    @Benchmark
+    public int cells(Split split) {
+        return "regex".equals(split.path) ? regex() : graphemes();
+    }
+
+    // printText before the grapheme scanner: a lookaround split, then a string per char.
+    private int regex() {
+        int x = 0;
+        int rows = 0;
+        for (String word : WORDS.split(text)) {
+            if (word.isEmpty() || word.equals("\r")) continue;
+            if (word.equals("\n")) {
+                x = 0;
+                rows++;
+                continue;
+            }
+            if (x + CharWidth.of(word) > WIDTH && x > 0) {
+                x = 0;
+                rows++;
+            }
+            for (char c : word.toCharArray()) {
+                String s = String.valueOf(c);
+                int w = CharWidth.of(s);
+                if (x + w > WIDTH) {
+                    x = 0;
+                    rows++;
+                }
+                row[x] = new Cell(s, Style.EMPTY);
+                x += w;
+            }
+        }
+        return rows;
+    }
+
+    // printText now: words found by index, placed a grapheme cluster at a time.
+    private int graphemes() {
+        Cell[] ascii = styles.asciiCells(Style.EMPTY);
+        int x = 0;
+        int rows = 0;
+        int end = text.length();
+        for (int i = 0; i < end; ) {
+            char c = text.charAt(i);
+            if (c == '\n' || c == '\r') {
+                if (c == '\n') {
+                    x = 0;
+                    rows++;
+                }
+                i++;
+                continue;
+            }
+            int wordEnd = i + 1;
+            if (!isBreak(c)) {
+                while (wordEnd < end && !isBreak(text.charAt(wordEnd))) wordEnd++;
+            }
+            if (x + Graphemes.measure(text, i, wordEnd) > WIDTH && x > 0) {
+                x = 0;
+                rows++;
+            }
+            for (int g = i; g < wordEnd; ) {
+                int next = Graphemes.next(text, g, wordEnd);
+                int w = Graphemes.width(text, g, next);
+                if (w > 0) {
+                    if (x + w > WIDTH) {
+                        x = 0;
+                        rows++;
+                    }
+                    char first = text.charAt(g);
+                    Cell cell;
+                    if (next == g + 1 && first < 128) {
+                        cell = ascii[first];
+                        if (cell == null) {
+                            cell = new Cell(Graphemes.symbol(text, g, next), Style.EMPTY);
+                            ascii[first] = cell;
+                        }
+                    } else {
+                        cell = new Cell(Graphemes.symbol(text, g, next), Style.EMPTY);
+                    }
+                    row[x] = cell;
+                    x += w;
+                }
+                g = next;
+            }
+            i = wordEnd;
+        }
+        return rows;
+    }
+
+    private static boolean isBreak(char c) {
+        return switch (c) {
+            case ' ', '\t', '\n', '\r', ',', '.', ';', ':', '/', '?', '!', '-' -> true;
+            default -> false;
+        };
+    }
+
+    static String corpus(String name) {
+        String[] words = "mixed".equals(name)
+                ? new String[]{"layout", "漢字", "かな", "emoji", "😀", "👍🏽", "café", "naïve", "über", "résumé", "the", "of"}
+                : new String[]{"the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "terminal", "widget", "of", "a"};
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder();
+        for (int p = 0; p < 200; p++) {
+            for (int w = 0; w < 60; w++) {
+                sb.append(words[random.nextInt(words.length)]);
+                sb.append(w % 11 == 10 ? ", " : " ");
+            }
+            sb.append("end.\n\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.widgets.Markdown.Highlighter;
+import dev.tamboui.widgets.Markdown.Theme.Element;
+
+import java.util.Arrays;
+
+/**
+ * The tokens of a code block, found once, line by line, when its node is first laid out. Each
+ * token is three ints: start and end offsets in the literal and the ordinal of its element.
+ * Tokens a highlighter reports out of order, overlapping or outside their line are dropped.
+ */
+final class CodeTokens {
+
+    private static final Element[] ELEMENTS = Element.values();
+
+    private final Highlighter highlighter;
+    private final int[] tokens;
+    private final int count;
+
+    private CodeTokens(Highlighter highlighter, int[] tokens, int count) {
+        this.highlighter = highlighter;
+        this.tokens = tokens;
+        this.count = count;
+    }
+
+    static CodeTokens of(Highlighter highlighter, String literal) {
+        Collector collector = new Collector();
+        int state = 0;
+        int lineStart = 0;
+        int length = literal.length();
+        while (lineStart < length) {
+            int lineEnd = literal.indexOf('\n', lineStart);
+            if (lineEnd < 0) lineEnd = length;
+            int contentEnd = lineEnd > lineStart && literal.charAt(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            collector.lineStart = collector.last = lineStart;
+            collector.lineEnd = contentEnd;
+            state = highlighter.highlight(literal, lineStart, contentEnd, state, collector);
+            lineStart = lineEnd + 1;
+        }
+        return new CodeTokens(highlighter, collector.tokens, collector.count);
+    }
+
+    /** Whether these are the tokens {@code highlighter} found. */
+    boolean isFrom(Highlighter highlighter) {
+        return this.highlighter == highlighter;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int start(int token) {
+        return tokens[token * 3];
+    }
+
+    int end(int token) {
+        return tokens[token * 3 + 1];
+    }
+
+    Element element(int token) {
+        return ELEMENTS[tokens[token * 3 + 2]];
+    }
+
+    private static final class Collector implements Highlighter.Tokens {
+        int[] tokens = new int[48];
+        int count;
+        int lineStart;
+        int lineEnd;
+        int last;
+
+        @Override
+        public void add(int start, int end, Element element) {
+            if (element == null || start < last || start < lineStart || end > lineEnd || start >= end) {
+                return;
+            }
+            if (count * 3 == tokens.length) {
+                tokens = Arrays.copyOf(tokens, tokens.length * 2);
+            }
+            tokens[count * 3] = start;
+            tokens[count * 3 + 1] = end;
+            tokens[count * 3 + 2] = element.ordinal();
+            count++;
+            last = end;
+        }
+    }
+}
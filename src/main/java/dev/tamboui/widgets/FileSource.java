@@ -0,0 +1,275 @@
+package dev.tamboui.widgets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A UTF-8 file mapped into memory and cut into chunks that end on block boundaries, so that
+ * each chunk parses on its own. Only the chunk boundaries live on the heap; the text of a chunk
+ * is decoded when it is parsed. Also keeps, for the widget and width last laid out, the height
+ * of every chunk and the layouts of the chunks near the viewport.
+ */
+final class FileSource {
+
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final ByteBuffer bytes;
+    // Per chunk, plus one entry for the end of the file: the byte offset it starts at, and the
+    // chars and lines before it.
+    private final int[] byteStarts;
+    private final int[] charStarts;
+    private final int[] lineStarts;
+    private final int count;
+
+    // Heights at layoutWidth, estimated until the chunk is laid out, the rows they start at,
+    // and the chunks that are laid out; the others are null.
+    private Markdown layoutOwner;
+    private int layoutWidth = -1;
+    private int[] heights;
+    private int[] tops;
+    private Chunk[] resident;
+
+    /** The top-level blocks of one chunk, with rows relative to the chunk's first row. */
+    record Chunk(Markdown.BlockLayout[] blocks, int[] tops, int height) {
+    }
+
+    private FileSource(ByteBuffer bytes, int chunkSize) {
+        this.bytes = bytes;
+        int size = bytes.limit();
+        int[] byteStarts = new int[16];
+        int[] charStarts = new int[16];
+        int[] lineStarts = new int[16];
+        int pos = size >= 3 && bytes.get(0) == (byte) 0xEF && bytes.get(1) == (byte) 0xBB && bytes.get(2) == (byte) 0xBF ? 3 : 0;
+        byteStarts[0] = pos;
+        int count = 1;
+        int chunkStart = pos;
+        int chars = 0;
+        int lines = 0;
+        boolean blank = false;
+        byte fence = 0;
+        int fenceLength = 0;
+        String htmlEnd = null;
+        while (pos < size) {
+            int end = pos;
+            int lineChars = 0;
+            for (; end < size; end++) {
+                byte b = bytes.get(end);
+                if (b == '\n') break;
+                // A char per leading byte, two for the surrogate pair of a four-byte sequence
+                if ((b & 0xC0) != 0x80) lineChars++;
+                if ((b & 0xF8) == 0xF0) lineChars++;
+            }
+            if (blank && fence == 0 && htmlEnd == null && pos - chunkStart >= chunkSize && startsBlock(pos, end)) {
+                if (count + 1 == byteStarts.length) {
+                    byteStarts = Arrays.copyOf(byteStarts, count * 2);
+                    charStarts = Arrays.copyOf(charStarts, count * 2);
+                    lineStarts = Arrays.copyOf(lineStarts, count * 2);
+                }
+                byteStarts[count] = pos;
+                charStarts[count] = chars;
+                lineStarts[count] = lines;
+                count++;
+                chunkStart = pos;
+            }
+
+            int i = pos;
+            while (i < end && (bytes.get(i) == ' ' || bytes.get(i) == '\t')) i++;
+            byte first = i < end ? bytes.get(i) : 0;
+            if (first == '`' || first == '~') {
+                int run = i;
+                while (run < end && bytes.get(run) == first) run++;
+                if (fence == 0 && run - i >= 3) {
+                    fence = first;
+                    fenceLength = run - i;
+                } else if (first == fence && run - i >= fenceLength && isBlank(run, end)) {
+                    fence = 0;
+                }
+            } else if (fence == 0 && htmlEnd == null && first == '<') {
+                htmlEnd = htmlBlockEnd(i, end);
+            }
+            if (htmlEnd != null && contains(pos, end, htmlEnd)) {
+                htmlEnd = null;
+            }
+            blank = isBlank(pos, end);
+            chars += lineChars + (end < size ? 1 : 0);
+            lines += end < size ? 1 : 0;
+            pos = end < size ? end + 1 : size;
+        }
+        byteStarts[count] = size;
+        charStarts[count] = chars;
+        lineStarts[count] = lines;
+        this.byteStarts = byteStarts;
+        this.charStarts = charStarts;
+        this.lineStarts = lineStarts;
+        this.count = count;
+    }
+
+    /** Maps {@code path} and splits it into chunks of at least {@code chunkSize} bytes. */
+    static FileSource open(Path path, int chunkSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + path);
+            }
+            return new FileSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), chunkSize);
+        }
+    }
+
+    boolean isEmpty() {
+        return charStarts[count] == 0;
+    }
+
+    int chunkCount() {
+        return count;
+    }
+
+    /** Offset in the decoded text where {@code chunk} starts. */
+    int charStart(int chunk) {
+        return charStarts[chunk];
+    }
+
+    int charLength(int chunk) {
+        return charStarts[chunk + 1] - charStarts[chunk];
+    }
+
+    /** Number of lines before {@code chunk}. */
+    int lineStart(int chunk) {
+        return lineStarts[chunk];
+    }
+
+    String text(int chunk) {
+        return decode(byteStarts[chunk], byteStarts[chunk + 1]);
+    }
+
+    /** The whole file, decoded onto the heap. */
+    String text() {
+        return decode(byteStarts[0], byteStarts[count]);
+    }
+
+    private String decode(int from, int to) {
+        return StandardCharsets.UTF_8.decode(bytes.slice(from, to - from)).toString();
+    }
+
+    /**
+     * Forgets heights and layouts if they were made for another widget or width. Heights start
+     * out as an estimate: a row per line, or per {@code width} chars if that is more.
+     */
+    void reset(Markdown owner, int width) {
+        if (owner == layoutOwner && width == layoutWidth) {
+            return;
+        }
+        layoutOwner = owner;
+        layoutWidth = width;
+        heights = new int[count];
+        tops = new int[count + 1];
+        resident = new Chunk[count];
+        for (int i = 0; i < count; i++) {
+            int lines = lineStarts[i + 1] - lineStarts[i];
+            heights[i] = Math.max(1, Math.max(lines, charLength(i) / Math.max(1, width)));
+            tops[i + 1] = tops[i] + heights[i];
+        }
+    }
+
+    int top(int chunk) {
+        return tops[chunk];
+    }
+
+    int height(int chunk) {
+        return heights[chunk];
+    }
+
+    Chunk resident(int chunk) {
+        return resident[chunk];
+    }
+
+    /** Keeps the layout of {@code chunk}, or drops it if {@code layout} is null. */
+    void setResident(int chunk, Chunk layout) {
+        resident[chunk] = layout;
+        if (layout != null && layout.height() != heights[chunk]) {
+            heights[chunk] = layout.height();
+            for (int i = chunk; i < count; i++) {
+                tops[i + 1] = tops[i] + heights[i];
+            }
+        }
+    }
+
+    /** Index of the chunk that contains {@code row}, or the last one past the end. */
+    int chunkAt(int row) {
+        int i = LineIndex.lastAtOrBelow(tops, count, row);
+        return Math.max(0, i);
+    }
+
+    /** Whether every chunk with a row in {@code [from, to)} is laid out. */
+    boolean isResident(Markdown owner, int width, int from, int to) {
+        if (owner != layoutOwner || width != layoutWidth) {
+            return false;
+        }
+        for (int i = chunkAt(Math.max(0, from)); i < count && tops[i] < to; i++) {
+            if (resident[i] == null) return false;
+        }
+        return true;
+    }
+
+    // After a blank line, a line that starts in the first column starts a new top-level block,
+    // unless it is another item of a list that the blank line made loose.
+    private boolean startsBlock(int pos, int end) {
+        if (pos == end) return false;
+        byte b = bytes.get(pos);
+        if (b == ' ' || b == '\t' || b == '\r') return false;
+        int marker = pos;
+        if (b != '-' && b != '*' && b != '+') {
+            while (marker < end && marker - pos < 9 && bytes.get(marker) >= '0' && bytes.get(marker) <= '9') marker++;
+            if (marker == pos || marker == end || bytes.get(marker) != '.' && bytes.get(marker) != ')') {
+                return true;
+            }
+        }
+        return marker + 1 < end && !isSpace(bytes.get(marker + 1));
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private boolean isBlank(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!isSpace(bytes.get(i))) return false;
+        }
+        return true;
+    }
+
+    // The HTML blocks that may contain blank lines, and what ends them; null for the others.
+    private String htmlBlockEnd(int pos, int end) {
+        if (startsWith(pos, end, "<!--")) return "-->";
+        if (startsWith(pos, end, "<?")) return "?>";
+        if (startsWith(pos, end, "<![CDATA[")) return "]]>";
+        for (String tag : new String[]{"pre", "script", "style", "textarea"}) {
+            if (startsWith(pos + 1, end, tag)) {
+                int after = pos + 1 + tag.length();
+                if (after == end || bytes.get(after) == '>' || isSpace(bytes.get(after))) {
+                    return "</" + tag + ">";
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean startsWith(int pos, int end, String prefix) {
+        if (end - pos < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase((char) bytes.get(pos + i)) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private boolean contains(int from, int to, String s) {
+        for (int i = from; i + s.length() <= to; i++) {
+            if (startsWith(i, to, s)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,147 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.text.CharWidth;
+
+/**
+ * Index-based scanning of grapheme clusters over a {@link CharSequence}, so that text can be
+ * measured and laid out one terminal cell at a time without allocating per word or per char.
+ * <p>
+ * A cluster is a base code point followed by anything that renders on top of it: combining
+ * marks, variation selectors, emoji modifiers and tags, code points joined with a ZWJ, and the
+ * second half of a regional indicator pair (flags).
+ */
+final class Graphemes {
+
+    private static final int ZWJ = 0x200D;
+
+    // Widths of U+0000..U+00FF, read without a lookup.
+    private static final byte[] LATIN1 = new byte[256];
+
+    // Direct-mapped cache for the code points above, each entry packed as cp << 2 | width, 0 when
+    // empty. An entry is one int, so threads laying out concurrently can share it without locks:
+    // they at worst evict each other's entries.
+    private static final int CACHE_SIZE = 4096;
+    private static final int[] CACHE = new int[CACHE_SIZE];
+
+    // One-char strings for ASCII, so the common case never allocates a cell symbol.
+    private static final String[] ASCII = new String[128];
+
+    static {
+        for (int i = 0; i < ASCII.length; i++) {
+            ASCII[i] = String.valueOf((char) i);
+        }
+        for (int cp = 0; cp < LATIN1.length; cp++) {
+            LATIN1[cp] = (byte) CharWidth.of(cp);
+        }
+    }
+
+    private Graphemes() {
+    }
+
+    /** Returns the index just past the grapheme cluster that starts at {@code start}. */
+    static int next(CharSequence text, int start, int end) {
+        // Nothing below U+0300 extends a cluster, so two such chars in a row end one
+        char c = text.charAt(start);
+        if (c < 0x300 && (start + 1 == end || text.charAt(start + 1) < 0x300)) {
+            return start + 1;
+        }
+        int cp = Character.codePointAt(text, start);
+        int i = start + Character.charCount(cp);
+        boolean regionalIndicator = isRegionalIndicator(cp);
+        while (i < end) {
+            int next = Character.codePointAt(text, i);
+            if (next == ZWJ) {
+                i += Character.charCount(next);
+                if (i < end) {
+                    i += Character.charCount(Character.codePointAt(text, i));
+                }
+            } else if (isExtender(next)) {
+                i += Character.charCount(next);
+            } else if (regionalIndicator && isRegionalIndicator(next)) {
+                i += Character.charCount(next);
+                regionalIndicator = false;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /** Display width of the cluster {@code [start, end)}: the widest code point in it. */
+    static int width(CharSequence text, int start, int end) {
+        char c = text.charAt(start);
+        if (end == start + 1 && c < 0x100) {
+            return LATIN1[c];
+        }
+        int width = 0;
+        for (int i = start; i < end; ) {
+            int cp = Character.codePointAt(text, i);
+            width = Math.max(width, width(cp));
+            i += Character.charCount(cp);
+        }
+        return width;
+    }
+
+    /** Display width of the text {@code [start, end)}, summed over its clusters. */
+    static int measure(CharSequence text, int start, int end) {
+        int width = 0;
+        for (int i = start; i < end; ) {
+            char c = text.charAt(i);
+            if (c < 0x300 && (i + 1 == end || text.charAt(i + 1) < 0x300)) {
+                width += c < 0x100 ? LATIN1[c] : width(c);
+                i++;
+            } else {
+                int next = next(text, i, end);
+                width += width(text, i, next);
+                i = next;
+            }
+        }
+        return width;
+    }
+
+    /** Display width of one code point, from the Latin-1 table or the cache. */
+    static int width(int cp) {
+        if (cp < 0x100) {
+            return LATIN1[cp];
+        }
+        int slot = (cp ^ (cp >>> 12)) & (CACHE_SIZE - 1);
+        int entry = CACHE[slot];
+        if (entry >>> 2 == cp) {
+            return entry & 3;
+        }
+        int width = CharWidth.of(cp);
+        if (width >= 0 && width <= 2) {
+            CACHE[slot] = cp << 2 | width;
+        }
+        return width;
+    }
+
+    /** The cell symbol for the cluster {@code [start, end)}, shared for ASCII. */
+    static String symbol(CharSequence text, int start, int end) {
+        if (end == start + 1) {
+            char c = text.charAt(start);
+            if (c < ASCII.length) {
+                return ASCII[c];
+            }
+        }
+        return text.subSequence(start, end).toString();
+    }
+
+    private static boolean isExtender(int cp) {
+        if (cp < 0x300) {
+            return false;
+        }
+        if ((cp >= 0xFE00 && cp <= 0xFE0F) || (cp >= 0xE0100 && cp <= 0xE01EF)
+                || (cp >= 0x1F3FB && cp <= 0x1F3FF) || (cp >= 0xE0020 && cp <= 0xE007F)) {
+            return true;
+        }
+        int type = Character.getType(cp);
+        return type == Character.NON_SPACING_MARK
+                || type == Character.ENCLOSING_MARK
+                || type == Character.COMBINING_SPACING_MARK;
+    }
+
+    private static boolean isRegionalIndicator(int cp) {
+        return cp >= 0x1F1E6 && cp <= 0x1F1FF;
+    }
+}
@@ -0,0 +1,514 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.buffer.Cell;
+import dev.tamboui.widgets.Markdown.BlockLayout;
+import dev.tamboui.widgets.Markdown.Layout;
+import dev.tamboui.widgets.Markdown.Line;
+import dev.tamboui.widgets.Markdown.TableRows;
+import dev.tamboui.widgets.Markdown.Theme.Element;
+import org.commonmark.ext.gfm.tables.TableRow;
+import org.commonmark.node.Document;
+import org.commonmark.node.Heading;
+import org.commonmark.node.Node;
+import org.commonmark.node.SourceSpan;
+import org.commonmark.node.Text;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A layout saved as bytes, so that a document can be painted without being parsed or laid
+ * out, such as the help pages bundled with an application. Written with {@link #write} at
+ * build time, opened with {@link #open} or {@link #fromResource}, and offered to a state with
+ * {@link Markdown.State#setSnapshot}.
+ * <p>
+ * A snapshot holds the rows of every block, the headings and source offsets used to navigate,
+ * and the geometry of tables. Restoring it only reads the geometry; the rows of a block are
+ * decoded when it first comes into view, as with culling. It is keyed by a hash of the text, the width and the widget's
+ * configuration version; when any of them differs, the text is parsed as usual. Styles are
+ * saved as the chain of theme elements each cell's style was derived through during layout,
+ * rather than as styles, so a snapshot takes the colors of the theme it is painted with, even
+ * where the theme it was written with gave two elements the same style.
+ * <p>
+ * The format: a header of big-endian ints, then zigzag varints unless noted.
+ * <pre>
+ * header   magic "MDLS", format, SHA-256 of the text as UTF-8 (32 bytes), width, config version
+ * styles   count, then the parent and element of each chain after the first, the base style
+ * symbols  count, then each as its UTF-8 length and bytes
+ * blocks   count, then for each: top, start column, advance, extent, end column, scroll width,
+ *          cells, source offset + 1, kind, then the heading's text, the table's geometry, or
+ *          the source offset + 1 and text of each heading nested in the block, then marks,
+ *          and the length in bytes of its lines followed by them
+ * lines    count, then for each: 0 if blank, 1, or 2 if it pans, cell count, and for each cell
+ *          its column less the previous one's plus one, style and symbol
+ * </pre>
+ */
+public final class LayoutSnapshot {
+
+    static final int FORMAT = 1;
+
+    private static final int MAGIC = 0x4d444c53;
+    private static final int HEADER = 48;
+    private static final Element[] ELEMENTS = Element.values();
+
+    private static final int BLOCK = 0;
+    private static final int HEADING = 1;
+    private static final int TABLE = 2;
+
+    private final ByteBuffer bytes;
+    private final int format;
+    private final byte[] textHash = new byte[32];
+    private final int width;
+    private final int configVersion;
+
+    private LayoutSnapshot(ByteBuffer bytes) throws IOException {
+        if (bytes.limit() < HEADER || bytes.getInt(0) != MAGIC) {
+            throw new IOException("not a layout snapshot");
+        }
+        this.bytes = bytes;
+        this.format = bytes.getInt(4);
+        bytes.get(8, textHash);
+        this.width = bytes.getInt(40);
+        this.configVersion = bytes.getInt(44);
+    }
+
+    /** Opens a snapshot file, memory-mapped. */
+    public static LayoutSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new LayoutSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Opens a snapshot on the class path, or returns null if there is none. It is memory-mapped
+     * when it is a file, and read otherwise, as from a jar.
+     */
+    public static LayoutSnapshot fromResource(ClassLoader loader, String name) throws IOException {
+        URL url = loader.getResource(name);
+        if (url == null) {
+            return null;
+        }
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return open(Path.of(url.toURI()));
+            } catch (URISyntaxException e) {
+                // Read it as a stream below
+            }
+        }
+        try (InputStream in = url.openStream()) {
+            return new LayoutSnapshot(ByteBuffer.wrap(in.readAllBytes()));
+        }
+    }
+
+    /** Lays out {@code text} with {@code widget} at {@code width} columns and saves it to {@code file}. */
+    public static void write(Markdown widget, String text, int width, Path file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            write(widget, text, width, out);
+        }
+    }
+
+    /**
+     * Lays out {@code text} with {@code widget} at {@code width} columns and saves it to
+     * {@code out}. It is restored by widgets with the same configuration version.
+     */
+    public static void write(Markdown widget, String text, int width, OutputStream out) throws IOException {
+        Objects.requireNonNull(text);
+        if (width <= 0) {
+            throw new IllegalArgumentException("width must be positive: " + width);
+        }
+        Layout layout = widget.completeLayout(new Markdown.State(text), width);
+        Encoder encoder = new Encoder(widget.styles());
+        encoder.layout(layout);
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT);
+        data.write(hash(text));
+        data.writeInt(width);
+        data.writeInt(widget.configVersion());
+        encoder.writeTo(data);
+        data.flush();
+    }
+
+    /** The width the layout was saved at. */
+    public int width() {
+        return width;
+    }
+
+    /** Whether this was saved at {@code width} by a widget with this configuration version. */
+    boolean matches(int width, int configVersion) {
+        return format == FORMAT && this.width == width && this.configVersion == configVersion;
+    }
+
+    /** Whether this was saved for {@code text}. */
+    boolean isFor(String text) {
+        return text != null && Arrays.equals(textHash, hash(text));
+    }
+
+    /** Reads the layout, with the styles of {@code styles}; null if the snapshot is corrupt. */
+    Layout restore(Markdown.State state, StyleTable styles) {
+        try {
+            return new Decoder(bytes.duplicate().position(HEADER), styles).layout(state, width);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException
+                 | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    private static byte[] hash(String text) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Encoder {
+        // Chains by identity: equal styles reached through different elements stay apart
+        private final Map<StyleTable.Derived, Integer> styleIds = new IdentityHashMap<>();
+        // The parent id and element of each chain by id; the base style, id 0, has none
+        private final List<int[]> styleList = new ArrayList<>();
+        private final Map<String, Integer> symbolIds = new HashMap<>();
+        private final List<String> symbols = new ArrayList<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        Encoder(StyleTable styles) {
+            styleIds.put(styles.root(), 0);
+            styleList.add(null);
+        }
+
+        void layout(Layout layout) {
+            varint(body, layout.blockCount());
+            for (int i = 0; i < layout.blockCount(); i++) {
+                block(layout.block(i), layout.top(i));
+            }
+        }
+
+        private void block(BlockLayout block, int top) {
+            List<Line> lines = block.lines;
+            if (lines == null) {
+                throw new IllegalStateException("block is not laid out");
+            }
+            varint(body, top);
+            varint(body, block.startX);
+            varint(body, block.advance);
+            varint(body, block.extent);
+            varint(body, block.endX);
+            varint(body, block.scrollWidth);
+            varint(body, block.cellsHeld());
+            varint(body, LineIndex.startOffset(block.node) + 1);
+            if (block.node instanceof Heading heading) {
+                varint(body, HEADING);
+                string(body, LineIndex.headingText(heading));
+            } else if (block.rows != null) {
+                TableRows rows = block.rows;
+                varint(body, TABLE);
+                varint(body, rows.tops.length);
+                varint(body, rows.headerRows);
+                varint(body, rows.headerHeight);
+                varint(body, rows.end);
+                varint(body, rows.colWidths.length);
+                for (int w : rows.colWidths) varint(body, w);
+                for (int r = 0; r < rows.tops.length; r++) {
+                    varint(body, rows.tops[r]);
+                    varint(body, LineIndex.startOffset(rows.rows[r]) + 1);
+                }
+            } else {
+                varint(body, BLOCK);
+                List<Heading> headings = new ArrayList<>();
+                LineIndex.nestedHeadings(block.node, headings);
+                varint(body, headings.size());
+                for (Heading heading : headings) {
+                    varint(body, LineIndex.startOffset(heading) + 1);
+                    string(body, LineIndex.headingText(heading));
+                }
+            }
+            int marks = block.markRows != null ? block.markRows.length : 0;
+            varint(body, marks);
+            for (int m = 0; m < marks; m++) {
+                varint(body, block.markRows[m]);
+                varint(body, block.markOffsets[m]);
+            }
+            // Prefixed with their length, so that they can be skipped until the block is in view
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            varint(out, lines.size());
+            for (Line line : lines) {
+                if (line == null) {
+                    varint(out, 0);
+                    continue;
+                }
+                varint(out, line.pans ? 2 : 1);
+                varint(out, line.size());
+                int col = -1;
+                for (int c = 0; c < line.size(); c++) {
+                    varint(out, line.col(c) - col - 1);
+                    col = line.col(c);
+                    varint(out, styleId(line.derived(c)));
+                    varint(out, symbolId(line.cell(c).symbol()));
+                }
+            }
+            varint(body, out.size());
+            body.writeBytes(out.toByteArray());
+        }
+
+        // Ids are given parents first, so that the decoder derives each chain from one it has.
+        private int styleId(StyleTable.Derived derived) {
+            Integer id = styleIds.get(derived);
+            if (id != null) {
+                return id;
+            }
+            if (derived.parent() == null) {
+                throw new IllegalStateException("style is not derived from the widget's base style: " + derived.style());
+            }
+            int parent = styleId(derived.parent());
+            id = styleList.size();
+            styleList.add(new int[]{parent, derived.element().ordinal()});
+            styleIds.put(derived, id);
+            return id;
+        }
+
+        private int symbolId(String symbol) {
+            Integer id = symbolIds.get(symbol);
+            if (id == null) {
+                id = symbols.size();
+                symbols.add(symbol);
+                symbolIds.put(symbol, id);
+            }
+            return id;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            ByteArrayOutputStream pools = new ByteArrayOutputStream();
+            varint(pools, styleList.size());
+            for (int id = 1; id < styleList.size(); id++) {
+                varint(pools, styleList.get(id)[0]);
+                varint(pools, styleList.get(id)[1]);
+            }
+            varint(pools, symbols.size());
+            for (String symbol : symbols) {
+                string(pools, symbol);
+            }
+            pools.writeTo(out);
+            body.writeTo(out);
+        }
+
+        private static void varint(ByteArrayOutputStream out, int value) {
+            int v = (value << 1) ^ (value >> 31);
+            while ((v & ~0x7f) != 0) {
+                out.write((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            out.write(v);
+        }
+
+        private static void string(ByteArrayOutputStream out, String s) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            varint(out, utf8.length);
+            out.writeBytes(utf8);
+        }
+    }
+
+    /** Where the lines of a block are saved, to decode them when the block comes into view. */
+    static final class SavedLines {
+        private final Decoder decoder;
+        private final int position;
+        final int cells;
+
+        private SavedLines(Decoder decoder, int position, int cells) {
+            this.decoder = decoder;
+            this.position = position;
+            this.cells = cells;
+        }
+
+        List<Line> lines() {
+            return decoder.lines(position);
+        }
+    }
+
+    private static final class Decoder {
+        private final ByteBuffer in;
+        private final StyleTable styles;
+        private StyleTable.Derived[] styleById;
+        private String[] symbols;
+        // Cells by style and symbol, so that equal cells are shared as in a fresh layout
+        private final Map<Long, Cell> cells = new HashMap<>();
+
+        Decoder(ByteBuffer in, StyleTable styles) {
+            this.in = in;
+            this.styles = styles;
+        }
+
+        Layout layout(Markdown.State state, int width) {
+            styleById = new StyleTable.Derived[varint()];
+            styleById[0] = styles.root();
+            for (int id = 1; id < styleById.length; id++) {
+                int parent = varint();
+                if (parent >= id) throw new IllegalArgumentException("style " + id + " derived from " + parent);
+                styleById[id] = styles.derive(styleById[parent], ELEMENTS[varint()]);
+            }
+            symbols = new String[varint()];
+            for (int i = 0; i < symbols.length; i++) {
+                symbols[i] = string();
+            }
+            int count = varint();
+            BlockLayout[] blocks = new BlockLayout[count];
+            int[] tops = new int[count];
+            int[] ends = new int[count];
+            int height = 0;
+            for (int i = 0; i < count; i++) {
+                tops[i] = varint();
+                blocks[i] = block();
+                height = Math.max(height, tops[i] + blocks[i].extent);
+                ends[i] = height;
+            }
+            Layout layout = new Layout(width, blocks, tops, ends, count, state.tableMeasures, state.mathTokens, state.codeTokens);
+            layout.restored = true;
+            return layout;
+        }
+
+        private BlockLayout block() {
+            int startX = varint();
+            int advance = varint();
+            int extent = varint();
+            int endX = varint();
+            int scrollWidth = varint();
+            int cellCount = varint();
+            int start = varint() - 1;
+            int kind = varint();
+            Node node = kind == HEADING ? heading(string()) : new Document();
+            spanAt(node, start);
+            if (kind == BLOCK) {
+                int headings = varint();
+                for (int h = 0; h < headings; h++) {
+                    int offset = varint() - 1;
+                    Node heading = heading(string());
+                    spanAt(heading, offset);
+                    node.appendChild(heading);
+                }
+            }
+            TableRows rows = null;
+            if (kind == TABLE) {
+                int rowCount = varint();
+                int headerRows = varint();
+                int headerHeight = varint();
+                int end = varint();
+                int[] colWidths = new int[varint()];
+                for (int c = 0; c < colWidths.length; c++) colWidths[c] = varint();
+                Node[] rowNodes = new Node[rowCount];
+                int[] rowTops = new int[rowCount];
+                for (int r = 0; r < rowCount; r++) {
+                    rowTops[r] = varint();
+                    rowNodes[r] = new TableRow();
+                    spanAt(rowNodes[r], varint() - 1);
+                }
+                rows = TableRows.restored(rowNodes, rowTops, headerRows, headerHeight, end, colWidths);
+            }
+            int marks = varint();
+            int[] markRows = marks > 0 ? new int[marks] : null;
+            int[] markOffsets = marks > 0 ? new int[marks] : null;
+            for (int m = 0; m < marks; m++) {
+                markRows[m] = varint();
+                markOffsets[m] = varint();
+            }
+            int length = varint();
+            BlockLayout block = new BlockLayout(node, startX, advance, extent, endX, null);
+            block.saved = new SavedLines(this, in.position(), cellCount);
+            in.position(in.position() + length);
+            block.rows = rows;
+            block.scrollWidth = scrollWidth;
+            block.markRows = markRows;
+            block.markOffsets = markOffsets;
+            return block;
+        }
+
+        synchronized List<Line> lines(int position) {
+            try {
+                in.position(position);
+                int count = varint();
+                List<Line> lines = new ArrayList<>(count);
+                for (int l = 0; l < count; l++) {
+                    lines.add(line());
+                }
+                return lines;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IllegalStateException("corrupt layout snapshot", e);
+            }
+        }
+
+        private Line line() {
+            int kind = varint();
+            if (kind == 0) {
+                return null;
+            }
+            Line line = new Line();
+            line.pans = kind == 2;
+            int size = varint();
+            int col = -1;
+            for (int c = 0; c < size; c++) {
+                col += varint() + 1;
+                int style = varint();
+                int symbol = varint();
+                Cell cell = cells.get(((long) style << 32) | symbol);
+                if (cell == null) {
+                    cell = new Cell(symbols[symbol], styleById[style].style());
+                    cells.put(((long) style << 32) | symbol, cell);
+                }
+                line.add(col, cell, styleById[style]);
+            }
+            line.trim();
+            return line;
+        }
+
+        // Stands in for a heading in the line index, which only needs its text and offset.
+        private static Node heading(String text) {
+            Heading heading = new Heading();
+            heading.appendChild(new Text(text));
+            return heading;
+        }
+
+        private static void spanAt(Node node, int offset) {
+            if (offset >= 0) {
+                node.setSourceSpans(List.of(SourceSpan.of(0, 0, offset, 0)));
+            }
+        }
+
+        private int varint() {
+            int v = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (shift > 28) throw new IllegalArgumentException("varint too long");
+                byte b = in.get();
+                v |= (b & 0x7f) << shift;
+                if (b >= 0) break;
+            }
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        private String string() {
+            byte[] utf8 = new byte[varint()];
+            in.get(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+    }
+}
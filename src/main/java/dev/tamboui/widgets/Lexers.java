@@ -0,0 +1,315 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.widgets.Markdown.Highlighter;
+import dev.tamboui.widgets.Markdown.Theme.Element;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The built-in highlighters: small hand-written lexers that walk a line once, by index. They
+ * only find what is worth coloring and do not check that the code is valid.
+ */
+final class Lexers {
+
+    private Lexers() {
+    }
+
+    static final Highlighter JAVA = Lexers::java;
+    static final Highlighter JSON = Lexers::json;
+    static final Highlighter YAML = Lexers::yaml;
+
+    private static final Set<String> JAVA_KEYWORDS = Set.of(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+            "continue", "default", "do", "double", "else", "enum", "extends", "final", "finally", "float",
+            "for", "goto", "if", "implements", "import", "instanceof", "int", "interface", "long", "native",
+            "new", "package", "permits", "private", "protected", "public", "record", "return", "sealed",
+            "short", "static", "strictfp", "super", "switch", "synchronized", "this", "throw", "throws",
+            "transient", "try", "var", "void", "volatile", "while", "yield", "true", "false", "null");
+
+    private static final Set<String> YAML_KEYWORDS = Set.of(
+            "true", "false", "null", "yes", "no", "on", "off", "~");
+
+    // Java: states are 0, 1 inside a block comment and 2 inside a text block.
+    private static int java(CharSequence line, int start, int end, int state, Highlighter.Tokens tokens) {
+        int i = start;
+        if (state != 0) {
+            String close = state == 1 ? "*/" : "\"\"\"";
+            int found = indexOf(line, close, i, end);
+            if (found < 0) {
+                tokens.add(i, end, state == 1 ? Element.CODE_COMMENT : Element.CODE_STRING);
+                return state;
+            }
+            i = found + close.length();
+            tokens.add(start, i, state == 1 ? Element.CODE_COMMENT : Element.CODE_STRING);
+        }
+        while (i < end) {
+            char c = line.charAt(i);
+            char next = i + 1 < end ? line.charAt(i + 1) : 0;
+            if (c == '/' && next == '/') {
+                tokens.add(i, end, Element.CODE_COMMENT);
+                return 0;
+            } else if (c == '/' && next == '*') {
+                int close = indexOf(line, "*/", i + 2, end);
+                if (close < 0) {
+                    tokens.add(i, end, Element.CODE_COMMENT);
+                    return 1;
+                }
+                tokens.add(i, close + 2, Element.CODE_COMMENT);
+                i = close + 2;
+            } else if (c == '"' && startsWith(line, "\"\"\"", i, end)) {
+                int close = indexOf(line, "\"\"\"", i + 3, end);
+                if (close < 0) {
+                    tokens.add(i, end, Element.CODE_STRING);
+                    return 2;
+                }
+                tokens.add(i, close + 3, Element.CODE_STRING);
+                i = close + 3;
+            } else if (c == '"' || c == '\'') {
+                int close = quoteEnd(line, i, end, true);
+                tokens.add(i, close, Element.CODE_STRING);
+                i = close;
+            } else if (isDigit(c) || c == '.' && isDigit(next)) {
+                int e = numberEnd(line, i, end);
+                tokens.add(i, e, Element.CODE_NUMBER);
+                i = e;
+            } else if (c == '@' && Character.isJavaIdentifierStart(next)) {
+                int e = identifierEnd(line, i + 1, end);
+                tokens.add(i, e, Element.CODE_KEYWORD);
+                i = e;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int e = identifierEnd(line, i, end);
+                if (JAVA_KEYWORDS.contains(line.subSequence(i, e).toString())) {
+                    tokens.add(i, e, Element.CODE_KEYWORD);
+                }
+                i = e;
+            } else {
+                i++;
+            }
+        }
+        return 0;
+    }
+
+    // JSON has no state: strings, numbers and literals all end on the line they start on.
+    private static int json(CharSequence line, int start, int end, int state, Highlighter.Tokens tokens) {
+        int i = start;
+        while (i < end) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                int close = quoteEnd(line, i, end, true);
+                int after = skipSpaces(line, close, end);
+                tokens.add(i, close, after < end && line.charAt(after) == ':' ? Element.CODE_PROPERTY : Element.CODE_STRING);
+                i = close;
+            } else if (c == '-' || isDigit(c)) {
+                int e = numberEnd(line, i + 1, end);
+                tokens.add(i, e, Element.CODE_NUMBER);
+                i = e;
+            } else if (isLetter(c)) {
+                int e = i + 1;
+                while (e < end && isLetter(line.charAt(e))) e++;
+                if (isWord(line, i, e, "true") || isWord(line, i, e, "false") || isWord(line, i, e, "null")) {
+                    tokens.add(i, e, Element.CODE_KEYWORD);
+                }
+                i = e;
+            } else {
+                i++;
+            }
+        }
+        return 0;
+    }
+
+    // YAML: state 0, or the indentation of the line that opened a block scalar plus one. The
+    // lines of a block scalar are those indented more than that line, and blank lines.
+    private static int yaml(CharSequence line, int start, int end, int state, Highlighter.Tokens tokens) {
+        int first = skipSpaces(line, start, end);
+        if (state > 0) {
+            if (first == end) {
+                return state;
+            }
+            if (first - start >= state) {
+                tokens.add(first, end, Element.CODE_STRING);
+                return state;
+            }
+        }
+        int i = first;
+        if ((startsWith(line, "---", i, end) || startsWith(line, "...", i, end))
+                && (i + 3 == end || isSpace(line.charAt(i + 3)))) {
+            tokens.add(i, i + 3, Element.CODE_KEYWORD);
+            i += 3;
+        }
+        int flow = 0;
+        while (i < end) {
+            char c = line.charAt(i);
+            if (isSpace(c)) {
+                i++;
+            } else if (c == '#' && (i == start || isSpace(line.charAt(i - 1)))) {
+                tokens.add(i, end, Element.CODE_COMMENT);
+                return 0;
+            } else if (c == '"' || c == '\'') {
+                int close = quoteEnd(line, i, end, c == '"');
+                tokens.add(i, close, isKey(line, close, end) ? Element.CODE_PROPERTY : Element.CODE_STRING);
+                i = close;
+            } else if ((c == '|' || c == '>') && flow == 0 && isBlockScalar(line, i + 1, end)) {
+                int comment = skipSpaces(line, indicatorsEnd(line, i + 1, end), end);
+                if (comment < end) {
+                    tokens.add(comment, end, Element.CODE_COMMENT);
+                }
+                return first - start + 1;
+            } else if (c == '[' || c == '{') {
+                flow++;
+                i++;
+            } else if (c == ']' || c == '}') {
+                flow = Math.max(0, flow - 1);
+                i++;
+            } else if (c == ',' || (c == '-' || c == '?' || c == ':') && (i + 1 == end || isSpace(line.charAt(i + 1)))) {
+                i++;
+            } else {
+                // A plain scalar runs to ": ", " #", the end of the line or, in a flow, a delimiter
+                int e = i;
+                while (e < end) {
+                    char d = line.charAt(e);
+                    if (d == ':' && (e + 1 == end || isSpace(line.charAt(e + 1)))) break;
+                    if (d == '#' && isSpace(line.charAt(e - 1))) break;
+                    if (flow > 0 && (d == ',' || d == ']' || d == '}')) break;
+                    e++;
+                }
+                int trimmed = e;
+                while (trimmed > i && isSpace(line.charAt(trimmed - 1))) trimmed--;
+                if (e < end && line.charAt(e) == ':') {
+                    tokens.add(i, trimmed, Element.CODE_PROPERTY);
+                } else if (isNumber(line, i, trimmed)) {
+                    tokens.add(i, trimmed, Element.CODE_NUMBER);
+                } else if (YAML_KEYWORDS.contains(line.subSequence(i, trimmed).toString().toLowerCase(Locale.ROOT))) {
+                    tokens.add(i, trimmed, Element.CODE_KEYWORD);
+                }
+                i = e;
+            }
+        }
+        return 0;
+    }
+
+    // Whether a ':' that ends a key follows position i.
+    private static boolean isKey(CharSequence line, int i, int end) {
+        int colon = skipSpaces(line, i, end);
+        return colon < end && line.charAt(colon) == ':' && (colon + 1 == end || isSpace(line.charAt(colon + 1)));
+    }
+
+    // Whether the chomping and indentation indicators at i, if any, end the line or precede a comment.
+    private static boolean isBlockScalar(CharSequence line, int i, int end) {
+        int e = skipSpaces(line, indicatorsEnd(line, i, end), end);
+        return e == end || line.charAt(e) == '#';
+    }
+
+    private static int indicatorsEnd(CharSequence line, int i, int end) {
+        while (i < end && (line.charAt(i) == '+' || line.charAt(i) == '-' || isDigit(line.charAt(i)))) i++;
+        return i;
+    }
+
+    // Decimal, hexadecimal, octal and the special floats of YAML 1.2.
+    private static boolean isNumber(CharSequence line, int start, int end) {
+        if (start == end) return false;
+        if (isWord(line, start, end, ".inf") || isWord(line, start, end, "-.inf") || isWord(line, start, end, "+.inf")
+                || isWord(line, start, end, ".nan")) {
+            return true;
+        }
+        int i = start;
+        if (line.charAt(i) == '-' || line.charAt(i) == '+') i++;
+        if (i + 1 < end && line.charAt(i) == '0' && (line.charAt(i + 1) == 'x' || line.charAt(i + 1) == 'o')) {
+            i += 2;
+            int digits = i;
+            while (i < end && Character.digit(line.charAt(i), 16) >= 0) i++;
+            return i == end && i > digits;
+        }
+        int digits = 0;
+        while (i < end && isDigit(line.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (i < end && line.charAt(i) == '.') {
+            i++;
+            while (i < end && isDigit(line.charAt(i))) {
+                i++;
+                digits++;
+            }
+        }
+        if (digits > 0 && i < end && (line.charAt(i) == 'e' || line.charAt(i) == 'E')) {
+            i++;
+            if (i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) i++;
+            int exponent = i;
+            while (i < end && isDigit(line.charAt(i))) i++;
+            if (i == exponent) return false;
+        }
+        return digits > 0 && i == end;
+    }
+
+    // End of the string literal that opens at i, after its closing quote or at the end of the
+    // line. Backslashes escape, except in YAML's single-quoted strings.
+    private static int quoteEnd(CharSequence line, int i, int end, boolean escapes) {
+        char quote = line.charAt(i);
+        for (int e = i + 1; e < end; e++) {
+            char c = line.charAt(e);
+            if (c == '\\' && escapes) {
+                e++;
+            } else if (c == quote) {
+                return e + 1;
+            }
+        }
+        return end;
+    }
+
+    // Digits, letters, underscores and dots, and the sign of an exponent.
+    private static int numberEnd(CharSequence line, int i, int end) {
+        while (i < end) {
+            char c = line.charAt(i);
+            if ((c == '+' || c == '-') && (line.charAt(i - 1) == 'e' || line.charAt(i - 1) == 'E')) {
+                i++;
+            } else if (isDigit(c) || isLetter(c) || c == '_' || c == '.') {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static int identifierEnd(CharSequence line, int i, int end) {
+        while (i < end && Character.isJavaIdentifierPart(line.charAt(i))) i++;
+        return i;
+    }
+
+    private static int skipSpaces(CharSequence line, int i, int end) {
+        while (i < end && isSpace(line.charAt(i))) i++;
+        return i;
+    }
+
+    private static int indexOf(CharSequence line, String s, int from, int end) {
+        for (int i = from; i + s.length() <= end; i++) {
+            if (startsWith(line, s, i, end)) return i;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(CharSequence line, String s, int i, int end) {
+        if (end - i < s.length()) return false;
+        for (int k = 0; k < s.length(); k++) {
+            if (line.charAt(i + k) != s.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isWord(CharSequence line, int start, int end, String word) {
+        return end - start == word.length() && startsWith(line, word, start, end);
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+}
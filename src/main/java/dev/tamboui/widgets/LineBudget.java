@@ -0,0 +1,90 @@
+package dev.tamboui.widgets;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the cells held by the laid out blocks of a state within a budget. Blocks are kept in
+ * the order they were last painted; when over budget, the least recently painted blocks that
+ * are out of view drop their lines. Their height stays, so scrolling is unaffected, and they
+ * are laid out again when they scroll back into view. Blocks that a new layout of the state no
+ * longer has are forgotten, so they do not take up the budget. Only used from the rendering
+ * thread.
+ */
+final class LineBudget {
+
+    // Cells held by each block when it was last painted, least recently painted first.
+    private final LinkedHashMap<Markdown.BlockLayout, Integer> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private long cells;
+    private long evictions;
+    // The layout the blocks belong to.
+    private Markdown.Layout layout;
+
+    /**
+     * Forgets the blocks of the layout counted so far that {@code layout} does not reuse, if
+     * that is another layout, without evicting them.
+     */
+    void use(Markdown.Layout layout) {
+        if (layout == this.layout) {
+            return;
+        }
+        this.layout = layout;
+        if (blocks.isEmpty()) {
+            return;
+        }
+        Set<Markdown.BlockLayout> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < layout.blockCount(); i++) {
+            live.add(layout.block(i));
+        }
+        Iterator<Map.Entry<Markdown.BlockLayout, Integer>> it = blocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Markdown.BlockLayout, Integer> entry = it.next();
+            if (!live.contains(entry.getKey())) {
+                it.remove();
+                cells -= entry.getValue();
+            }
+        }
+    }
+
+    /** Moves {@code block} to the most recently painted end and counts the cells it holds now. */
+    void painted(Markdown.BlockLayout block) {
+        int held = block.cellsHeld();
+        Integer before = blocks.put(block, held);
+        cells += held - (before != null ? before : 0);
+    }
+
+    /**
+     * Evicts the least recently painted blocks until at most {@code budget} cells are held,
+     * sparing the last {@code inView} painted.
+     */
+    void trim(long budget, int inView) {
+        Iterator<Map.Entry<Markdown.BlockLayout, Integer>> it = blocks.entrySet().iterator();
+        for (int evictable = blocks.size() - inView; cells > budget && evictable > 0; evictable--) {
+            Map.Entry<Markdown.BlockLayout, Integer> entry = it.next();
+            it.remove();
+            cells -= entry.getValue();
+            entry.getKey().evict();
+            evictions++;
+        }
+    }
+
+    /** Drops the rows of a table in view outside block rows {@code [from, to)}, if over budget. */
+    void trimRows(Markdown.BlockLayout block, int from, int to, long budget) {
+        if (cells > budget && block.rows != null && block.rows.lines != null) {
+            block.rows.evictOutside(from, to);
+            painted(block);
+        }
+    }
+
+    long cells() {
+        return cells;
+    }
+
+    long evictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,153 @@
+package dev.tamboui.widgets;
+
+import org.commonmark.ext.gfm.tables.TableBody;
+import org.commonmark.ext.gfm.tables.TableHead;
+import org.commonmark.ext.gfm.tables.TableRow;
+import org.commonmark.node.Block;
+import org.commonmark.node.Code;
+import org.commonmark.node.Heading;
+import org.commonmark.node.Node;
+import org.commonmark.node.SourceSpan;
+import org.commonmark.node.Text;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The headings of a layout, including those nested in block quotes and list items, and the row
+ * each one starts on, by text and by anchor. Built once per layout, when first needed; rows are
+ * looked up with a binary search.
+ */
+final class LineIndex {
+
+    private final int[] headingRows;
+    private final String[] headingTexts;
+    private final Map<String, Integer> headingsByKey;
+
+    private LineIndex(int[] headingRows, String[] headingTexts, Map<String, Integer> headingsByKey) {
+        this.headingRows = headingRows;
+        this.headingTexts = headingTexts;
+        this.headingsByKey = headingsByKey;
+    }
+
+    static LineIndex of(Markdown.Layout layout) {
+        int[] headingRows = new int[8];
+        String[] headingTexts = new String[8];
+        int headings = 0;
+        Map<String, Integer> headingsByKey = new HashMap<>();
+
+        List<Heading> found = new ArrayList<>();
+        for (int i = 0; i < layout.blockCount(); i++) {
+            Node node = layout.block(i).node;
+            if (node instanceof Heading heading) {
+                found.add(heading);
+            } else {
+                nestedHeadings(node, found);
+            }
+            for (Heading heading : found) {
+                if (headings == headingRows.length) {
+                    headingRows = Arrays.copyOf(headingRows, headings * 2);
+                    headingTexts = Arrays.copyOf(headingTexts, headings * 2);
+                }
+                String text = headingText(heading);
+                headingRows[headings] = heading == node ? layout.top(i) : layout.rowOf(heading);
+                headingTexts[headings] = text;
+                headingsByKey.putIfAbsent(text.toLowerCase(Locale.ROOT), headings);
+                headingsByKey.putIfAbsent(slug(text), headings);
+                headings++;
+            }
+            found.clear();
+        }
+        return new LineIndex(Arrays.copyOf(headingRows, headings), Arrays.copyOf(headingTexts, headings), headingsByKey);
+    }
+
+    // Headings in the blocks under node, in document order; they only nest in other blocks.
+    static void nestedHeadings(Node node, List<Heading> found) {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNext()) {
+            if (child instanceof Heading heading) {
+                found.add(heading);
+            } else if (child instanceof Block) {
+                nestedHeadings(child, found);
+            }
+        }
+    }
+
+    /**
+     * The row of the heading whose text or GitHub-style anchor is {@code anchorOrText}, or -1.
+     * A leading {@code #} is ignored; matching is case-insensitive and the first heading wins.
+     */
+    int headingRow(String anchorOrText) {
+        String key = anchorOrText.startsWith("#") ? anchorOrText.substring(1) : anchorOrText;
+        Integer index = headingsByKey.get(key.strip().toLowerCase(Locale.ROOT));
+        return index != null ? headingRows[index] : -1;
+    }
+
+    /** Text of the last heading that starts at or above {@code row}, or {@code null}. */
+    String headingAt(int row) {
+        int i = lastAtOrBelow(headingRows, headingRows.length, row);
+        return i >= 0 ? headingTexts[i] : null;
+    }
+
+    // Index of the last value <= key in the ascending prefix values[0, size), or -1.
+    static int lastAtOrBelow(int[] values, int size, int key) {
+        int lo = 0;
+        int hi = size - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] <= key) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // Nodes that start rows of their own: blocks, and the sections and rows of tables.
+    static boolean startsRow(Node node) {
+        return node instanceof Block || node instanceof TableHead || node instanceof TableBody || node instanceof TableRow;
+    }
+
+    static int startOffset(Node node) {
+        List<SourceSpan> spans = node.getSourceSpans();
+        return spans.isEmpty() ? -1 : spans.get(0).getInputIndex();
+    }
+
+    static String headingText(Heading heading) {
+        return text(heading, new StringBuilder()).toString().strip();
+    }
+
+    private static StringBuilder text(Node node, StringBuilder sb) {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNext()) {
+            if (child instanceof Text text) {
+                sb.append(text.getLiteral());
+            } else if (child instanceof Code code) {
+                sb.append(code.getLiteral());
+            } else {
+                text(child, sb);
+            }
+        }
+        return sb;
+    }
+
+    // GitHub's heading anchors: lower case, punctuation dropped, spaces turned into hyphens.
+    static String slug(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            if (Character.isLetterOrDigit(cp) || cp == '-' || cp == '_') {
+                sb.appendCodePoint(Character.toLowerCase(cp));
+            } else if (cp == ' ') {
+                sb.append('-');
+            }
+            i += Character.charCount(cp);
+        }
+        return sb.toString();
+    }
+}
@@ -4,10 +4,11 @@ import dev.tamboui.buffer.Buffer;
 import dev.tamboui.buffer.Cell;
 import dev.tamboui.layout.Rect;
 import dev.tamboui.style.Color;
+import dev.tamboui.style.Modifier;
 import dev.tamboui.style.Style;
-import dev.tamboui.text.CharWidth;
 import dev.tamboui.widget.StatefulWidget;
 import org.commonmark.node.*;
+import org.commonmark.parser.IncludeSourceSpans;
 import org.commonmark.parser.Parser;
 import org.commonmark.ext.gfm.tables.*;
 import org.commonmark.ext.gfm.strikethrough.StrikethroughExtension;
@@ -16,102 +17,2341 @@ import org.commonmark.ext.autolink.AutolinkExtension;
 import org.commonmark.ext.task.list.items.TaskListItemsExtension;
 import org.commonmark.ext.task.list.items.TaskListItemMarker;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
 
 public class Markdown implements StatefulWidget<Markdown.State> {
 
     public static class State {
+        // The source lives in a buffer so append() does not copy the whole text; the String
+        // handed out by text() is materialized lazily. A null buffer means null text.
+        private TextBuffer content;
         private String text;
         private int scrollY = 0;
         private int maxScrollY = 0;
+        private int scrollX = 0;
+        private int maxScrollX = 0;
+
+        // Bumped by setText whenever the content actually changes; the parsed
+        // document is reused for as long as the stamp it was built from matches.
+        private long version = 0;
+        private Node document;
+        private Parser documentParser;
+        private long documentVersion = -1;
+        private long parseCacheHits = 0;
+        private long parseCacheMisses = 0;
+
+        // Version of the last setText; when the cached document is at least that recent,
+        // everything after it was append() and only the trailing block needs re-parsing.
+        private long replacedVersion = 0;
+        private int parsedLength;
+        private boolean hasDefinitions;
+
+        // Layout of the cached document for one widget and width; painting a new scroll
+        // offset only copies rows out of it. Volatile because async widgets publish it from
+        // the layout thread.
+        private volatile Frame frame;
+        private long layoutCacheHits = 0;
+        private long layoutCacheMisses = 0;
+
+        // Top-level block layouts from the last layout pass, reused by the next one for
+        // blocks whose source did not change. Dropped when the width or widget changes.
+        private Map<BlockKey, BlockLayout> blockCache = new HashMap<>();
+        private Markdown blockCacheOwner;
+        private int blockCacheWidth = -1;
+        private String blockCacheDefinitions;
+
+        // Column widths and row heights of the document's tables, kept for as long as their node.
+        final Map<Node, TableMeasure> tableMeasures = Collections.synchronizedMap(new WeakHashMap<>());
+
+        // Math literals split into printed runs and the tokens of highlighted code blocks,
+        // likewise kept for as long as their node.
+        final Map<Node, MathTokens> mathTokens = Collections.synchronizedMap(new WeakHashMap<>());
+        final Map<Node, CodeTokens> codeTokens = Collections.synchronizedMap(new WeakHashMap<>());
+
+        // Held while parsing and laying out: the document and the block cache above are only
+        // touched under it, so at most one layout, synchronous or not, works on them at a time.
+        final Object engineLock = new Object();
+
+        // The last background layout started for this state, and what it was started for, so
+        // that text changes can restart it right away.
+        private volatile LayoutJob job;
+        private Markdown asyncOwner;
+        private int asyncWidth;
+
+        // Set while a text or width change is pending: the layout the viewport was anchored in,
+        // and the source offset and row within that block that was at the top.
+        private Layout anchorLayout;
+        private int anchorOffset;
+        private int anchorDelta;
+
+        // Set for states read with fromPath until the text is replaced or appended to.
+        private FileSource file;
+
+        // Created by the first render of a widget with a layout budget.
+        private LineBudget lineBudget;
+
+        // A layout snapshot offered for the text at snapshotVersion, and whether it was saved
+        // for that text, once checked.
+        private LayoutSnapshot snapshot;
+        private long snapshotVersion;
+        private Boolean snapshotMatches;
+
+        // What the last render painted: the widget, the area, the line on each of its rows and
+        // how far panning lines were scrolled.
+        private Markdown paintedOwner;
+        private Rect paintedArea;
+        private Line[] paintedRows;
+        private int paintedScrollX;
+        private boolean frameChanged = true;
+        private Cell[][] paintScratch;
+
+        // The query of the last find, its matches in the last layout and which one is current.
+        private TextSearch search;
 
         public State(String text) {
+            this.content = text != null ? new TextBuffer(text) : null;
             this.text = text;
         }
 
+        /**
+         * A state for a UTF-8 Markdown file, mapped into memory rather than read. The file is
+         * split into chunks on block boundaries, and only the chunks within a screen of the
+         * viewport are parsed and laid out, so the heap used depends on the viewport rather
+         * than the file. Rows of the other chunks are estimated until they come into view.
+         * Each chunk is parsed on its own: link reference definitions only apply within their
+         * chunk, and headings are only found by {@link #scrollToHeading} once laid out. Chunks
+         * are small enough to lay out on the rendering thread, also for async widgets.
+         */
+        public static State fromPath(Path path) throws IOException {
+            return fromPath(path, FileSource.DEFAULT_CHUNK_SIZE);
+        }
+
+        static State fromPath(Path path, int chunkSize) throws IOException {
+            State state = new State(null);
+            state.file = FileSource.open(path, chunkSize);
+            return state;
+        }
+
+        /** The text; for a state read with {@link #fromPath}, the whole file is decoded on every call. */
         public String text() {
+            if (file != null) {
+                return file.text();
+            }
+            if (text == null && content != null) {
+                text = content.toString();
+            }
             return text;
         }
 
-        public void setText(String text) {
-            this.text = text;
+        public void setText(String text) {
+            String old = file != null ? null : text();
+            if (file != null || !Objects.equals(old, text)) {
+                captureAnchor();
+                if (anchorLayout != null) {
+                    anchorOffset = old != null && text != null ? remapOffset(old, text, anchorOffset) : 0;
+                }
+                this.content = text != null ? new TextBuffer(text) : null;
+                this.text = text;
+                this.file = null;
+                this.version++;
+                this.replacedVersion = version;
+                restartJob();
+            }
+        }
+
+        /**
+         * Appends to the current text. Blocks before the last top-level block are kept as they
+         * are, both parsed and laid out, so the next render only re-parses the trailing block.
+         * A state read with {@link #fromPath} reads the whole file onto the heap first.
+         */
+        public void append(CharSequence delta) {
+            if (delta.length() == 0) {
+                return;
+            }
+            if (file != null) {
+                content = new TextBuffer(file.text());
+                file = null;
+            } else if (content == null) {
+                content = new TextBuffer("");
+            }
+            content.append(delta);
+            text = null;
+            version++;
+            restartJob();
+        }
+
+        boolean isEmpty() {
+            if (file != null) {
+                return file.isEmpty();
+            }
+            return content == null || content.length() == 0;
+        }
+
+        /**
+         * Offers a layout saved with {@link LayoutSnapshot#write} for the current text. A render
+         * by a widget configured like the one that saved it, at the width it was saved for,
+         * paints it without parsing the text. Otherwise, and once the text changes, the text is
+         * laid out as usual. Ignored by states read with {@link #fromPath}.
+         */
+        public void setSnapshot(LayoutSnapshot snapshot) {
+            this.snapshot = snapshot;
+            this.snapshotVersion = version;
+            this.snapshotMatches = null;
+        }
+
+        // The snapshot offered for the current text, if any; whether it was saved for this
+        // text is checked by snapshotMatchesText.
+        LayoutSnapshot snapshot() {
+            return snapshot != null && snapshotVersion == version && file == null ? snapshot : null;
+        }
+
+        boolean snapshotMatchesText() {
+            if (snapshotMatches == null) {
+                snapshotMatches = snapshot.isFor(text());
+            }
+            return snapshotMatches;
+        }
+
+        /** The text to parse, its version, and the version of the setText it starts from. */
+        record Source(CharSequence text, long version, long replacedVersion) {
+        }
+
+        // The live content, for layouts that run on the rendering thread.
+        Source source() {
+            return new Source(content, version, replacedVersion);
+        }
+
+        public long version() {
+            return version;
+        }
+
+        public long parseCacheHits() {
+            return parseCacheHits;
+        }
+
+        public long parseCacheMisses() {
+            return parseCacheMisses;
+        }
+
+        public long layoutCacheHits() {
+            return layoutCacheHits;
+        }
+
+        public long layoutCacheMisses() {
+            return layoutCacheMisses;
+        }
+
+        /** Cells held by laid out blocks, as counted for a widget with a layout budget. */
+        public long layoutCells() {
+            return lineBudget != null ? lineBudget.cells() : 0;
+        }
+
+        /** Blocks that dropped their lines to stay within a widget's layout budget. */
+        public long layoutEvictions() {
+            return lineBudget != null ? lineBudget.evictions() : 0;
+        }
+
+        /**
+         * Whether the last render painted anything other than the render before it, of the same
+         * widget into the same area. When it did not, the area holds the same cells as after
+         * that render, so the host can skip diffing and flushing it.
+         */
+        public boolean frameChanged() {
+            return frameChanged;
+        }
+
+        // The rows of the last render, if it was by this widget into this area.
+        Line[] paintedRows(Markdown owner, Rect area) {
+            return owner == paintedOwner && area.equals(paintedArea) ? paintedRows : null;
+        }
+
+        int paintedScrollX() {
+            return paintedScrollX;
+        }
+
+        void painted(Markdown owner, Rect area, Line[] rows, int scrollX, boolean changed) {
+            paintedOwner = owner;
+            paintedArea = area;
+            paintedRows = rows;
+            paintedScrollX = scrollX;
+            frameChanged = changed;
+        }
+
+        // Two rows of cells for diffing a row against the one painted before.
+        Cell[][] paintScratch(int width) {
+            if (paintScratch == null || paintScratch[0].length != width) {
+                paintScratch = new Cell[2][width];
+            }
+            return paintScratch;
+        }
+
+        // The budget, counting only blocks of this layout; those of the layouts it replaced
+        // that it did not reuse are dropped from it.
+        LineBudget lineBudget(Layout layout) {
+            if (lineBudget == null) {
+                lineBudget = new LineBudget();
+            }
+            lineBudget.use(layout);
+            return lineBudget;
+        }
+
+        /**
+         * Waits until the background layout for the current text, if any, has finished, so the
+         * next render of an async widget paints it. Returns {@code false} on timeout.
+         */
+        public boolean awaitLayout(Duration timeout) throws InterruptedException {
+            long deadline = System.nanoTime() + timeout.toNanos();
+            LayoutJob current = job;
+            while (current != null) {
+                try {
+                    current.done.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    return false;
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Markdown layout failed", e.getCause());
+                }
+                if (current == job) {
+                    return true;
+                }
+                current = job;
+            }
+            return true;
+        }
+
+        Layout layout(Markdown owner, int width) {
+            Frame frame = this.frame;
+            if (frame != null && frame.owner() == owner && frame.version() == version && frame.layout().width() == width) {
+                layoutCacheHits++;
+                return frame.layout();
+            }
+            layoutCacheMisses++;
+            return null;
+        }
+
+        // The last layout for this widget and width, even if the text has changed since.
+        Layout staleLayout(Markdown owner, int width) {
+            Frame frame = this.frame;
+            return frame != null && frame.owner() == owner && frame.layout().width() == width ? frame.layout() : null;
+        }
+
+        void cacheLayout(Markdown owner, Layout layout, long version) {
+            this.frame = new Frame(layout, owner, version);
+        }
+
+        // Starts laying out the current text in the background, unless that is already under
+        // way; a job for older text or another width is cancelled.
+        void scheduleLayout(Markdown owner, int width) {
+            asyncOwner = owner;
+            asyncWidth = width;
+            LayoutJob running = job;
+            if (running != null && running.owner == owner && running.width == width
+                    && running.source.version() == version) {
+                return;
+            }
+            if (running != null) {
+                running.cancel();
+            }
+            if (isEmpty()) {
+                job = null;
+                return;
+            }
+            // A view of the text as it is now, which later appends leave alone
+            LayoutJob next = new LayoutJob(this, owner, width, new Source(content.view(), version, replacedVersion));
+            job = next;
+            next.start();
+        }
+
+        private void restartJob() {
+            if (asyncOwner != null) {
+                scheduleLayout(asyncOwner, asyncWidth);
+            }
+        }
+
+        Map<BlockKey, BlockLayout> blockCache(Markdown owner, int width, String definitions) {
+            if (blockCacheOwner != owner || blockCacheWidth != width || !definitions.equals(blockCacheDefinitions)) {
+                blockCache = new HashMap<>();
+                blockCacheOwner = owner;
+                blockCacheWidth = width;
+                blockCacheDefinitions = definitions;
+            }
+            return blockCache;
+        }
+
+        Map<BlockKey, BlockLayout> blockCache() {
+            return blockCache;
+        }
+
+        void setBlockCache(Map<BlockKey, BlockLayout> blockCache) {
+            this.blockCache = blockCache;
+        }
+
+        Node document(Parser parser, Source source) {
+            long version = source.version();
+            if (document != null && documentParser == parser && documentVersion == version) {
+                parseCacheHits++;
+                return document;
+            }
+            parseCacheMisses++;
+            if (document == null || documentParser != parser || documentVersion < source.replacedVersion()
+                    || hasDefinitions || !reparseTail(parser, source.text())) {
+                document = parser.parse(source.text().toString());
+                hasDefinitions = false;
+                for (Node node = document.getFirstChild(); node != null; node = node.getNext()) {
+                    hasDefinitions |= node instanceof LinkReferenceDefinition;
+                }
+            }
+            documentParser = parser;
+            documentVersion = version;
+            parsedLength = source.text().length();
+            return document;
+        }
+
+        // Re-parses the text from the line the last top-level block starts on and swaps the
+        // result in for that block. Earlier blocks are closed, so appended text cannot change
+        // them, except through link reference definitions, which fall back to a full parse.
+        // If the last block started on a line that was still being written, that line may
+        // turn out to continue the block before it (a lazy paragraph line, a table row), so
+        // that block is re-parsed too. A table's header line may be a paragraph continuation
+        // indented by four columns or more, which parsed on its own would be indented code, so
+        // a table is re-parsed with the block before it.
+        private boolean reparseTail(Parser parser, CharSequence content) {
+            Node from = document.getLastChild();
+            if (from == null || from.getSourceSpans().isEmpty()) {
+                return false;
+            }
+            int lineEnd = indexOf(content, '\n', lineStart(from));
+            if ((lineEnd < 0 || lineEnd >= parsedLength) && from.getPrevious() != null) {
+                from = from.getPrevious();
+            }
+            if (from instanceof TableBlock && from.getPrevious() != null) {
+                from = from.getPrevious();
+            }
+            if (from.getSourceSpans().isEmpty()) {
+                return false;
+            }
+            SourceSpan first = from.getSourceSpans().get(0);
+            int start = lineStart(from);
+            Node tail = parser.parse(content.subSequence(start, content.length()).toString());
+            for (Node node = tail.getFirstChild(); node != null; node = node.getNext()) {
+                if (node instanceof LinkReferenceDefinition) {
+                    return false;
+                }
+            }
+            while (from != null) {
+                Node next = from.getNext();
+                from.unlink();
+                from = next;
+            }
+            Node node = tail.getFirstChild();
+            while (node != null) {
+                Node next = node.getNext();
+                shiftSourceSpans(node, first.getLineIndex(), start);
+                document.appendChild(node);
+                node = next;
+            }
+            return true;
+        }
+
+        private static int indexOf(CharSequence text, char c, int from) {
+            for (int i = from; i < text.length(); i++) {
+                if (text.charAt(i) == c) return i;
+            }
+            return -1;
+        }
+
+        private static int lineStart(Node block) {
+            SourceSpan first = block.getSourceSpans().get(0);
+            return first.getInputIndex() - first.getColumnIndex();
+        }
+
+        private static void shiftSourceSpans(Node node, int lines, int offset) {
+            List<SourceSpan> spans = node.getSourceSpans();
+            if (!spans.isEmpty()) {
+                List<SourceSpan> shifted = new ArrayList<>(spans.size());
+                for (SourceSpan span : spans) {
+                    shifted.add(SourceSpan.of(span.getLineIndex() + lines, span.getColumnIndex(),
+                            span.getInputIndex() + offset, span.getLength()));
+                }
+                node.setSourceSpans(shifted);
+            }
+            for (Node child = node.getFirstChild(); child != null; child = child.getNext()) {
+                shiftSourceSpans(child, lines, offset);
+            }
+        }
+
+        public int scrollY() {
+            return scrollY;
+        }
+
+        public int maxScrollY() {
+            return maxScrollY;
+        }
+
+        public void setScrollY(int scrollY) {
+            this.scrollY = Math.max(0, Math.min(scrollY, maxScrollY));
+            this.anchorLayout = null;
+        }
+
+        public void setMaxScrollY(int maxScrollY) {
+            this.maxScrollY = maxScrollY;
+            this.scrollY = Math.min(this.scrollY, this.maxScrollY);
+        }
+
+        public void scrollUp() {
+            setScrollY(scrollY - 1);
+        }
+
+        public void scrollDown() {
+            setScrollY(scrollY + 1);
+        }
+
+        public void scrollToBottom() {
+            setScrollY(maxScrollY);
+        }
+
+        /**
+         * How far code blocks and tables are panned to the left, for widgets built with
+         * {@link Builder#horizontalScroll}. The rest of the document does not move.
+         */
+        public int scrollX() {
+            return scrollX;
+        }
+
+        public int maxScrollX() {
+            return maxScrollX;
+        }
+
+        public void setScrollX(int scrollX) {
+            this.scrollX = Math.max(0, Math.min(scrollX, maxScrollX));
+        }
+
+        public void setMaxScrollX(int maxScrollX) {
+            this.maxScrollX = maxScrollX;
+            this.scrollX = Math.min(this.scrollX, this.maxScrollX);
+        }
+
+        public void scrollLeft() {
+            setScrollX(scrollX - 1);
+        }
+
+        public void scrollRight() {
+            setScrollX(scrollX + 1);
+        }
+
+        /**
+         * Scrolls to the heading whose text or anchor ({@code "#getting-started"}) matches,
+         * using the last rendered layout. Returns {@code false} if there is no such heading.
+         */
+        public boolean scrollToHeading(String anchorOrText) {
+            LineIndex index = index();
+            int row = index != null ? index.headingRow(anchorOrText) : -1;
+            if (row < 0) {
+                return false;
+            }
+            setScrollY(row);
+            return true;
+        }
+
+        /** Scrolls to the block that contains the given offset in the text. */
+        public boolean scrollToSourceOffset(int offset) {
+            Frame frame = this.frame;
+            int row = frame != null ? frame.layout().rowOf(offset) : -1;
+            if (row >= 0 && file != null) {
+                // The block may be in a chunk that is not laid out yet: the next render lays
+                // it out and scrolls to where the offset really is.
+                setScrollY(row);
+                anchorLayout = frame.layout();
+                anchorOffset = offset;
+                anchorDelta = 0;
+                return true;
+            }
+            if (row < 0) {
+                return false;
+            }
+            setScrollY(row);
+            return true;
+        }
+
+        /** Text of the heading of the section at the top of the viewport, or {@code null}. */
+        public String headingAtScrollPosition() {
+            LineIndex index = index();
+            return index != null ? index.headingAt(scrollY) : null;
+        }
+
+        /** Offset in the text of the block at the top of the viewport, or -1 before the first render. */
+        public int sourceOffsetAtScrollPosition() {
+            Frame frame = this.frame;
+            return frame != null ? frame.layout().sourceOffsetAt(scrollY) : -1;
+        }
+
+        /**
+         * Searches the rendered text of the last layout for {@code query}, ignoring case, and
+         * scrolls to the first match at or below the top of the viewport. Renders highlight the
+         * matches until the search is cleared, and find them again when the text or width
+         * changes; after an append, only the new blocks are searched. Matches do not span rows.
+         * For states read with {@link #fromPath}, only chunks that are laid out are searched.
+         * Returns {@code null} if nothing matches or nothing was rendered yet; a null or empty
+         * query clears the search.
+         */
+        public SearchMatch find(String query) {
+            if (query == null || query.isEmpty()) {
+                clearSearch();
+                return null;
+            }
+            search = new TextSearch(query);
+            return updateSearch() ? select(search.atOrAfter(scrollY)) : null;
+        }
+
+        /** Moves to the match after the current one, wrapping around, and scrolls it into view. */
+        public SearchMatch next() {
+            if (!updateSearch()) {
+                return null;
+            }
+            int current = search.current();
+            return select(current < 0 ? search.atOrAfter(scrollY) : (current + 1) % search.count());
+        }
+
+        /** Moves to the match before the current one, wrapping around, and scrolls it into view. */
+        public SearchMatch previous() {
+            if (!updateSearch()) {
+                return null;
+            }
+            int current = search.current();
+            return select(current < 0 ? search.before(scrollY) : (current - 1 + search.count()) % search.count());
+        }
+
+        /** Number of matches of the last {@link #find} in the last layout. */
+        public int matchCount() {
+            return updateSearch() ? search.count() : 0;
+        }
+
+        public void clearSearch() {
+            search = null;
+        }
+
+        // Brings the matches up to date with the last layout; false if there are none.
+        private boolean updateSearch() {
+            Frame frame = this.frame;
+            if (search == null || frame == null) {
+                return false;
+            }
+            search.update(frame.layout(), frame.owner().styles);
+            return search.count() > 0;
+        }
+
+        // Makes a match current and scrolls it into the area painted last, sideways too if
+        // its row pans.
+        private SearchMatch select(int match) {
+            search.setCurrent(match);
+            int row = search.row(match);
+            int col = search.col(match);
+            int width = search.width(match);
+            int height = paintedArea != null ? paintedArea.height() : 1;
+            if (row < scrollY || row >= scrollY + height) {
+                setScrollY(row);
+            }
+            if (search.pans(match) && paintedArea != null) {
+                if (col < scrollX) {
+                    setScrollX(col);
+                } else if (col + width > scrollX + paintedArea.width()) {
+                    setScrollX(col + width - paintedArea.width());
+                }
+            }
+            return new SearchMatch(row, col, width, search.layout().sourceOffsetAt(row));
+        }
+
+        // Highlights the matches on the rows in view of a layout being painted.
+        void highlightMatches(Markdown owner, Layout layout, Line[] rows) {
+            search.update(layout, owner.styles);
+            search.highlight(rows, scrollY, owner.styles);
+        }
+
+        // Remembers the source offset at the top of the viewport, and how many rows into that
+        // block it is, before a text or width change replaces the layout.
+        void captureAnchor() {
+            Frame frame = this.frame;
+            if (anchorLayout != null || frame == null) {
+                return;
+            }
+            Layout layout = frame.layout();
+            int offset = layout.sourceOffsetAt(scrollY);
+            if (offset >= 0) {
+                anchorLayout = layout;
+                anchorOffset = offset;
+                anchorDelta = scrollY - layout.rowOf(offset);
+            }
+        }
+
+        // Scrolls a new layout so the anchored block is back at the top.
+        void restoreAnchor(Layout layout) {
+            if (anchorLayout == null || anchorLayout == layout) {
+                return;
+            }
+            anchorLayout = null;
+            int row = layout.rowOf(anchorOffset);
+            if (row >= 0) {
+                scrollY = row + anchorDelta;
+            }
+        }
+
+        // Where an offset in the old text ends up in the new one, assuming a single edit: text
+        // before the first difference and after the last one stays where it is.
+        private static int remapOffset(String oldText, String newText, int offset) {
+            int oldLength = oldText.length();
+            int newLength = newText.length();
+            int prefix = 0;
+            int max = Math.min(oldLength, newLength);
+            while (prefix < max && oldText.charAt(prefix) == newText.charAt(prefix)) {
+                prefix++;
+            }
+            if (offset < prefix) {
+                return offset;
+            }
+            int suffix = 0;
+            while (suffix < max - prefix
+                    && oldText.charAt(oldLength - 1 - suffix) == newText.charAt(newLength - 1 - suffix)) {
+                suffix++;
+            }
+            return offset >= oldLength - suffix ? offset + newLength - oldLength : prefix;
+        }
+
+        private LineIndex index() {
+            Frame frame = this.frame;
+            return frame != null ? frame.layout().index() : null;
+        }
+    }
+
+    /**
+     * How each Markdown element is styled, as a function of the style it is nested in. The
+     * defaults reproduce the widget's original colors; override single elements with
+     * {@link #with(Element, UnaryOperator)}.
+     */
+    public static final class Theme {
+
+        public enum Element {
+            HEADING,
+            STRONG,
+            EMPHASIS,
+            STRIKETHROUGH,
+            CODE,
+            CODE_BLOCK,
+            CODE_KEYWORD,
+            CODE_STRING,
+            CODE_NUMBER,
+            CODE_COMMENT,
+            CODE_PROPERTY,
+            MATH,
+            MATH_COMMAND,
+            LINK,
+            IMAGE,
+            BLOCK_QUOTE,
+            HTML,
+            TABLE_HEADER,
+            SEARCH_MATCH,
+            SEARCH_CURRENT
+        }
+
+        private static final Theme DEFAULTS;
+
+        static {
+            EnumMap<Element, UnaryOperator<Style>> styles = new EnumMap<>(Element.class);
+            styles.put(Element.HEADING, s -> s.bold().fg(Color.CYAN));
+            styles.put(Element.STRONG, Style::bold);
+            styles.put(Element.EMPHASIS, Style::italic);
+            // Dim the text to represent strikethrough if no native style modifier exists
+            styles.put(Element.STRIKETHROUGH, s -> s.fg(Color.DARK_GRAY).italic());
+            styles.put(Element.CODE, s -> s.fg(Color.YELLOW).bg(Color.DARK_GRAY));
+            styles.put(Element.CODE_BLOCK, s -> s.fg(Color.YELLOW).bg(Color.DARK_GRAY));
+            // Code tokens are derived from the code block style, so they keep its background
+            styles.put(Element.CODE_KEYWORD, s -> s.fg(Color.MAGENTA).bold());
+            styles.put(Element.CODE_STRING, s -> s.fg(Color.GREEN));
+            styles.put(Element.CODE_NUMBER, s -> s.fg(Color.CYAN));
+            styles.put(Element.CODE_COMMENT, s -> s.fg(Color.GRAY).italic());
+            styles.put(Element.CODE_PROPERTY, s -> s.fg(Color.BLUE));
+            styles.put(Element.MATH, s -> s.fg(Color.YELLOW));
+            styles.put(Element.MATH_COMMAND, s -> s.fg(Color.GREEN));
+            styles.put(Element.LINK, s -> s.fg(Color.BLUE).underlined());
+            styles.put(Element.IMAGE, s -> s.fg(Color.BLUE).underlined());
+            styles.put(Element.BLOCK_QUOTE, s -> s.italic().fg(Color.GRAY));
+            styles.put(Element.HTML, s -> s.fg(Color.GRAY));
+            styles.put(Element.TABLE_HEADER, Style::bold);
+            styles.put(Element.SEARCH_MATCH, s -> s.fg(Color.BLACK).bg(Color.YELLOW));
+            styles.put(Element.SEARCH_CURRENT, s -> s.fg(Color.BLACK).bg(Color.CYAN).bold());
+            DEFAULTS = new Theme(styles);
+        }
+
+        private final EnumMap<Element, UnaryOperator<Style>> styles;
+
+        private Theme(EnumMap<Element, UnaryOperator<Style>> styles) {
+            this.styles = styles;
+        }
+
+        public static Theme defaults() {
+            return DEFAULTS;
+        }
+
+        public Theme with(Element element, UnaryOperator<Style> style) {
+            EnumMap<Element, UnaryOperator<Style>> copy = new EnumMap<>(styles);
+            copy.put(element, Objects.requireNonNull(style));
+            return new Theme(copy);
+        }
+
+        public Style apply(Element element, Style parent) {
+            return styles.get(element).apply(parent);
+        }
+    }
+
+    /** Optional CommonMark syntax; leave out what the content never uses. */
+    public enum Extension {
+        TABLES,
+        STRIKETHROUGH,
+        AUTOLINK,
+        TASK_LIST_ITEMS
+    }
+
+    /**
+     * Finds the tokens to color in fenced code blocks of the languages it is registered for
+     * with {@link Builder#highlighter}. Each code block is highlighted once, line by line, and
+     * its tokens are kept for as long as its node; a line starts in the state the previous
+     * one ended in, so that comments and strings can span lines. Text outside tokens keeps the
+     * code block style; tokens are styled with the {@code CODE_*} elements of the theme.
+     */
+    @FunctionalInterface
+    public interface Highlighter {
+
+        /** Java, including text blocks and annotations. */
+        Highlighter JAVA = Lexers.JAVA;
+        /** JSON; strings followed by a colon are properties. */
+        Highlighter JSON = Lexers.JSON;
+        /** YAML, including block scalars. */
+        Highlighter YAML = Lexers.YAML;
+
+        /**
+         * Reports the tokens of {@code text[start, end)}, a line without its line break, in
+         * order and without overlaps, and returns the state the next line starts in. The
+         * first line starts in state 0.
+         */
+        int highlight(CharSequence text, int start, int end, int state, Tokens tokens);
+
+        /** Receives the tokens of a line. */
+        @FunctionalInterface
+        interface Tokens {
+            void add(int start, int end, Theme.Element element);
+        }
+    }
+
+    /**
+     * A match found by {@link State#find}: the document row it is on, the column it starts at,
+     * before any horizontal panning, the columns it spans, and the source offset of the block
+     * it is in.
+     */
+    public record SearchMatch(int row, int column, int width, int sourceOffset) {
+    }
+
+    /**
+     * What one render cost, per phase. Cache counters and evictions are for this render only;
+     * {@code layoutCells} is what the state holds after it, with a layout budget. Async widgets
+     * report their background layout separately, from the layout thread, with no paint.
+     */
+    public record RenderMetrics(
+            long parseNanos,
+            long layoutNanos,
+            long paintNanos,
+            int nodesVisited,
+            int linesLaidOut,
+            int cellsWritten,
+            long parseCacheHits,
+            long parseCacheMisses,
+            long layoutCacheHits,
+            long layoutCacheMisses,
+            int blockCacheHits,
+            int blockCacheMisses,
+            long layoutEvictions,
+            long layoutCells) {
+    }
+
+    /** Receives the metrics of every render of a widget built with {@link Builder#metrics}. */
+    @FunctionalInterface
+    public interface MetricsListener {
+        void onRender(RenderMetrics metrics);
+    }
+
+    // Parsers are thread-safe and costly to set up, so widgets with the same extensions share one.
+    private static final Map<Set<Extension>, Parser> PARSERS = new ConcurrentHashMap<>();
+
+    static Parser parser(Set<Extension> extensions) {
+        return PARSERS.computeIfAbsent(Set.copyOf(extensions), Markdown::createParser);
+    }
+
+    private static Parser createParser(Set<Extension> extensions) {
+        List<org.commonmark.Extension> enabled = new ArrayList<>();
+        for (Extension extension : Extension.values()) {
+            if (!extensions.contains(extension)) continue;
+            switch (extension) {
+                case TABLES -> enabled.add(TablesExtension.create());
+                case STRIKETHROUGH -> enabled.add(StrikethroughExtension.create());
+                case AUTOLINK -> enabled.add(AutolinkExtension.create());
+                case TASK_LIST_ITEMS -> enabled.add(TaskListItemsExtension.create());
+            }
+        }
+        return Parser.builder()
+                .extensions(enabled)
+                .includeSourceSpans(IncludeSourceSpans.BLOCKS)
+                .build();
+    }
+
+    private final StyleTable styles;
+    private final Parser parser;
+    private final boolean culling;
+    private final boolean async;
+    private final String loadingText;
+    private final MetricsListener metrics;
+    private final boolean stickyTableHeaders;
+    private final long layoutBudget;
+    private final boolean incrementalPaint;
+    private final boolean parallelLayout;
+    private final int configVersion;
+
+    public Markdown(Style baseStyle) {
+        this(builder().baseStyle(baseStyle));
+    }
+
+    public Markdown(Style baseStyle, Theme theme) {
+        this(builder().baseStyle(baseStyle).theme(theme));
+    }
+
+    private Markdown(Builder builder) {
+        this.styles = new StyleTable(builder.baseStyle, builder.theme, builder.highlighters, builder.horizontalScroll);
+        this.culling = builder.culling || builder.layoutBudget > 0;
+        this.async = builder.async;
+        this.loadingText = builder.loadingText;
+        this.metrics = builder.metrics;
+        this.stickyTableHeaders = builder.stickyTableHeaders;
+        this.layoutBudget = builder.layoutBudget;
+        this.incrementalPaint = builder.incrementalPaint;
+        this.parallelLayout = builder.parallelLayout;
+        this.parser = parser(builder.extensions);
+        this.configVersion = configVersion(builder);
+    }
+
+    // Identifies what a layout depends on besides the text and the width, for snapshots. The
+    // theme is not part of it: snapshots record how each style is derived, not the style.
+    private static int configVersion(Builder builder) {
+        StringBuilder sb = new StringBuilder().append(builder.configVersion).append(';').append(builder.extensions).append(';').append(builder.horizontalScroll);
+        new TreeMap<>(builder.highlighters).forEach((language, highlighter) -> sb.append(';').append(language).append('=')
+                .append(highlighter == Highlighter.JAVA ? "java" : highlighter == Highlighter.JSON ? "json"
+                        : highlighter == Highlighter.YAML ? "yaml" : "custom"));
+        return sb.toString().hashCode();
+    }
+
+    int configVersion() {
+        return configVersion;
+    }
+
+    StyleTable styles() {
+        return styles;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+        private Style baseStyle = Style.EMPTY;
+        private Theme theme = Theme.defaults();
+        private Set<Extension> extensions = EnumSet.allOf(Extension.class);
+        private boolean culling = false;
+        private boolean async = false;
+        private String loadingText;
+        private MetricsListener metrics;
+        private boolean stickyTableHeaders = false;
+        private long layoutBudget = 0;
+        private boolean incrementalPaint = false;
+        private boolean horizontalScroll = false;
+        private boolean parallelLayout = false;
+        private int configVersion = 0;
+        private final Map<String, Highlighter> highlighters = new HashMap<>(Map.of(
+                "java", Highlighter.JAVA,
+                "json", Highlighter.JSON,
+                "yaml", Highlighter.YAML,
+                "yml", Highlighter.YAML));
+
+        private Builder() {
+        }
+
+        public Builder baseStyle(Style baseStyle) {
+            this.baseStyle = baseStyle;
+            return this;
+        }
+
+        public Builder theme(Theme theme) {
+            this.theme = Objects.requireNonNull(theme);
+            return this;
+        }
+
+        /** The syntax extensions to parse; all of them by default. */
+        public Builder extensions(Extension... extensions) {
+            this.extensions = extensions.length == 0 ? EnumSet.noneOf(Extension.class) : EnumSet.copyOf(Arrays.asList(extensions));
+            return this;
+        }
+
+        /**
+         * Highlights fenced code blocks whose info string starts with {@code language}, ignoring
+         * case, or stops highlighting them if {@code highlighter} is null. Java, JSON and YAML
+         * ({@code java}, {@code json}, {@code yaml}, {@code yml}) are highlighted by default.
+         */
+        public Builder highlighter(String language, Highlighter highlighter) {
+            String key = language.toLowerCase(Locale.ROOT);
+            if (highlighter == null) {
+                highlighters.remove(key);
+            } else {
+                highlighters.put(key, highlighter);
+            }
+            return this;
+        }
+
+        /**
+         * When enabled, top-level blocks outside the viewport are only measured; their cells
+         * are laid out the first time they scroll into view. Tables are laid out row by row.
+         */
+        public Builder culling(boolean culling) {
+            this.culling = culling;
+            return this;
+        }
+
+        /**
+         * Caps the cells that laid out blocks hold on to, per state. When over the cap, blocks
+         * out of view drop their lines, least recently painted first, and are laid out again
+         * when they scroll back into view; their heights are kept. Implies culling. Zero, the
+         * default, means no cap.
+         */
+        public Builder layoutBudget(long cells) {
+            if (cells < 0) {
+                throw new IllegalArgumentException("layoutBudget must not be negative: " + cells);
+            }
+            this.layoutBudget = cells;
+            return this;
+        }
+
+        /**
+         * For hosts that keep the buffer's contents from one frame to the next rather than
+         * clearing it: render then only writes the cells that differ from its last render of
+         * the same state and area, blanking the ones it painted before and no longer does.
+         */
+        public Builder incrementalPaint(boolean incrementalPaint) {
+            this.incrementalPaint = incrementalPaint;
+            return this;
+        }
+
+        /**
+         * When enabled, code blocks and tables are laid out at their full width rather than
+         * wrapped at the area's edge, and pan with {@link State#setScrollX}. Panning only
+         * changes which columns are painted; nothing is laid out again.
+         */
+        public Builder horizontalScroll(boolean horizontalScroll) {
+            this.horizontalScroll = horizontalScroll;
+            return this;
+        }
+
+        /**
+         * When enabled, the top-level blocks of a document are laid out concurrently on the
+         * common fork-join pool, and then placed one after the other as usual. The result is
+         * the same as laying them out in order; worth it for large documents on many cores.
+         */
+        public Builder parallelLayout(boolean parallelLayout) {
+            this.parallelLayout = parallelLayout;
+            return this;
+        }
+
+        /**
+         * Identifies the widget's configuration in {@link LayoutSnapshot}s, along with its syntax
+         * extensions, highlighted languages and horizontal scrolling. Change it when a custom
+         * highlighter changes what it finds, so that snapshots saved before no longer match.
+         */
+        public Builder configVersion(int configVersion) {
+            this.configVersion = configVersion;
+            return this;
+        }
+
+        /** When enabled, a table's header row stays at the top of the area while its body scrolls by. */
+        public Builder stickyTableHeaders(boolean stickyTableHeaders) {
+            this.stickyTableHeaders = stickyTableHeaders;
+            return this;
+        }
+
+        /**
+         * When enabled, text changes are parsed and laid out on a virtual thread. Until that is
+         * done, render keeps painting the last finished layout.
+         */
+        public Builder async(boolean async) {
+            this.async = async;
+            return this;
+        }
+
+        /** A line shown at the bottom of the area while an async layout is in progress. */
+        public Builder loadingText(String loadingText) {
+            this.loadingText = loadingText;
+            return this;
+        }
+
+        /**
+         * Reports timings and counters for every render. Without a listener nothing is measured,
+         * so leaving this hook in costs nothing.
+         */
+        public Builder metrics(MetricsListener metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public Markdown build() {
+            return new Markdown(this);
+        }
+    }
+
+    @Override
+    public void render(Rect area, Buffer buffer, State state) {
+        if (state.isEmpty()) {
+            paintRows(area, buffer, state, new Line[area.height()]);
+            return;
+        }
+
+        MetricsRecorder recorder = metrics != null ? new MetricsRecorder(state) : null;
+        Layout layout = state.file != null ? chunkedLayout(state, area, recorder) : state.layout(this, area.width());
+        if (layout == null) {
+            state.captureAnchor();
+            layout = restoreSnapshot(state, area.width());
+        }
+        boolean loading = false;
+        if (layout == null && async) {
+            state.scheduleLayout(this, area.width());
+            // The job may already have finished; only a layout for older text, or for another
+            // width, is painted with the loading line over it.
+            Frame frame = state.frame;
+            layout = frame != null && frame.owner() == this ? frame.layout() : null;
+            loading = layout == null || frame.version() != state.version() || layout.width() != area.width();
+        } else if (layout == null) {
+            synchronized (state.engineLock) {
+                State.Source source = state.source();
+                layout = buildLayout(state, area.width(), source, null, recorder);
+                state.cacheLayout(this, layout, source.version());
+            }
+        }
+        if (layout != null) {
+            state.restoreAnchor(layout);
+            state.setMaxScrollY(Math.max(0, layout.height() - area.height()));
+            state.setMaxScrollX(Math.max(0, layout.scrollWidth() - area.width()));
+            if (culling || layout.restored) {
+                long start = recorder != null ? System.nanoTime() : 0;
+                LineBudget budget = layoutBudget > 0 ? state.lineBudget(layout) : null;
+                layout.materialize(state.scrollY(), area.height(), styles, stickyTableHeaders, recorder, budget, layoutBudget);
+                if (recorder != null) recorder.layoutNanos += System.nanoTime() - start;
+            }
+        }
+        long start = recorder != null ? System.nanoTime() : 0;
+        boolean searching = layout != null && state.search != null;
+        Line[] rows = layout != null ? layout.rowsInView(state.scrollY(), area.height(), stickyTableHeaders && !searching)
+                : new Line[area.height()];
+        if (searching) {
+            // Pinned headers go over the rows they hide, so they are put in after the highlights
+            state.highlightMatches(this, layout, rows);
+            if (stickyTableHeaders) layout.putStickyHeader(rows, state.scrollY());
+        }
+        if (loading && loadingText != null && area.height() > 0) {
+            rows[area.height() - 1] = LOADING;
+        }
+        int cells = paintRows(area, buffer, state, rows);
+        if (recorder != null) {
+            recorder.paintNanos += System.nanoTime() - start;
+            recorder.cellsWritten += cells;
+        }
+        if (recorder != null) {
+            metrics.onRender(recorder.finish(state));
+        }
+    }
+
+    // Stands for the loading line in the rows of a frame.
+    private static final Line LOADING = new Line();
+
+    // Paints each row of the area and returns the number of cells written. Rows that show
+    // the same line as in the last render of this state, widget and area have not changed.
+    // With incremental paint those are not written at all, and the others only where their
+    // cells differ; otherwise every row is painted onto what is assumed to be a blank area.
+    private int paintRows(Rect area, Buffer buffer, State state, Line[] rows) {
+        Line[] previous = state.paintedRows(this, area);
+        int scrollX = state.scrollX();
+        int previousScrollX = state.paintedScrollX();
+        boolean changed = previous == null;
+        int written = 0;
+        for (int y = 0; y < rows.length; y++) {
+            Line line = rows[y];
+            boolean same = previous != null && previous[y] == line
+                    && (line == null || !line.pans || scrollX == previousScrollX);
+            changed |= !same;
+            if (!incrementalPaint) {
+                if (line == LOADING) {
+                    written += paintLoadingLine(area, buffer);
+                } else if (line != null) {
+                    written += line.paint(area, buffer, area.y() + y, scrollX);
+                }
+            } else if (!same) {
+                boolean known = previous != null && previous[y] != LOADING;
+                Line before = known ? previous[y] : null;
+                written += line == LOADING ? paintLoadingLine(area, buffer)
+                        : repaintRow(area, buffer, area.y() + y, before, previousScrollX, known, line, scrollX,
+                                state.paintScratch(area.width()));
+            }
+        }
+        state.painted(this, area, rows, scrollX, changed);
+        return written;
+    }
+
+    // Writes the cells of a row where they differ from what it showed before, blanking the
+    // columns that no longer have a glyph. If what it showed is not known, writes every cell.
+    // Goes right to left, so that columns covered by a wide glyph are blanked before it is
+    // written, as in a cleared buffer.
+    private static int repaintRow(Rect area, Buffer buffer, int y, Line before, int beforeScrollX, boolean known,
+                                  Line line, int scrollX, Cell[][] scratch) {
+        Cell[] now = scratch[0];
+        Cell[] then = scratch[1];
+        if (line != null) line.spread(now, scrollX); else Arrays.fill(now, null);
+        if (before != null) before.spread(then, beforeScrollX); else Arrays.fill(then, null);
+        int written = 0;
+        for (int x = now.length - 1; x >= 0; x--) {
+            Cell cell = now[x] != null ? now[x] : Cell.EMPTY;
+            Cell old = then[x] != null ? then[x] : Cell.EMPTY;
+            // A covered column only matches another covered one: what the buffer holds there
+            // is up to how it handles wide glyphs.
+            boolean same = cell == Line.COVERED || old == Line.COVERED ? cell == old : cell.equals(old);
+            if (!known || !same) {
+                buffer.set(area.x() + x, y, cell == Line.COVERED ? Cell.EMPTY : cell);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    private int paintLoadingLine(Rect area, Buffer buffer) {
+        int y = area.y() + area.height() - 1;
+        int col = 0;
+        int written = 0;
+        for (int i = 0; i < loadingText.length(); ) {
+            int end = Graphemes.next(loadingText, i, loadingText.length());
+            int w = Graphemes.width(loadingText, i, end);
+            if (w > 0) {
+                if (col + w > area.width()) break;
+                buffer.set(area.x() + col, y, new Cell(Graphemes.symbol(loadingText, i, end), styles.base()));
+                written++;
+                col += w;
+            }
+            i = end;
+        }
+        for (; col < area.width(); col++) {
+            buffer.set(area.x() + col, y, new Cell(" ", styles.base()));
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * Renders the whole document at {@code width} columns to {@code out}, one line of text per
+     * row, without a terminal or a {@link Buffer}. With {@code ansi}, styles are written as SGR
+     * escape sequences and reset at the end of each line. Trailing blanks are dropped, except
+     * those with a background in ANSI, as are blank rows at the end of the document.
+     * Rows are written as they are read from the layout, so no full-height buffer is held. With
+     * culling, blocks are laid out as their rows are written, and with a layout budget dropped
+     * again once written. Lines of panned code blocks
+     * and tables are written in full. States read from a file are not supported.
+     */
+    public void print(State state, int width, Appendable out, boolean ansi) throws IOException {
+        if (width <= 0) {
+            throw new IllegalArgumentException("width must be positive: " + width);
+        }
+        if (state.file != null) {
+            throw new IllegalArgumentException("states read from a file cannot be printed");
+        }
+        if (state.isEmpty()) {
+            return;
+        }
+        Layout layout = layoutNow(state, width);
+        Cell[] row = new Cell[Math.max(width, layout.scrollWidth())];
+        Map<Style, String> escapes = ansi ? new HashMap<>() : null;
+        StringBuilder text = new StringBuilder(row.length * 2);
+        LineBudget budget = layoutBudget > 0 ? state.lineBudget(layout) : null;
+        int height = layout.height();
+        int blank = 0;
+        for (int top = 0; top < height; top += PRINT_ROWS) {
+            int rows = Math.min(PRINT_ROWS, height - top);
+            if (culling || layout.restored) {
+                layout.materialize(top, rows, styles, false, null, budget, layoutBudget);
+            }
+            for (Line line : layout.rowsInView(top, rows, false)) {
+                if (line != null) line.spread(row, 0); else Arrays.fill(row, null);
+                text.setLength(0);
+                printRow(row, escapes, text);
+                if (text.isEmpty()) {
+                    blank++;
+                    continue;
+                }
+                // Blank rows are held back until a row follows them, so the document does not end in them
+                for (; blank > 0; blank--) out.append('\n');
+                out.append(text).append('\n');
+            }
+        }
+    }
+
+    // The state's layout at this width: cached, restored from its snapshot, or built on this thread.
+    Layout layoutNow(State state, int width) {
+        Layout layout = state.layout(this, width);
+        if (layout == null) {
+            layout = restoreSnapshot(state, width);
+        }
+        if (layout == null) {
+            synchronized (state.engineLock) {
+                State.Source source = state.source();
+                layout = buildLayout(state, width, source, null, null);
+                state.cacheLayout(this, layout, source.version());
+            }
+        }
+        return layout;
+    }
+
+    // The layout of a text state with every block laid out, as saved in snapshots.
+    Layout completeLayout(State state, int width) {
+        Layout layout = layoutNow(state, width);
+        if (culling || layout.restored) {
+            layout.materialize(0, layout.height(), styles, false, null, null, 0);
+        }
+        return layout;
+    }
+
+    // On a layout cache miss: the state's snapshot, if it was saved for its text by a widget
+    // configured like this one at this width. A snapshot that cannot be read is dropped.
+    private Layout restoreSnapshot(State state, int width) {
+        LayoutSnapshot snapshot = state.snapshot();
+        if (snapshot == null || !snapshot.matches(width, configVersion) || !state.snapshotMatchesText()) {
+            return null;
+        }
+        Layout layout = snapshot.restore(state, styles);
+        if (layout == null) {
+            state.setSnapshot(null);
+            return null;
+        }
+        state.cacheLayout(this, layout, state.version());
+        return layout;
+    }
+
+    // Rows laid out and written at a time when printing.
+    private static final int PRINT_ROWS = 64;
+
+    // One row of text, or nothing if the row is blank. Blank columns are spaces in the base
+    // style; escapes maps each style to its SGR sequence, and is null for plain text. Each row
+    // starts and ends with the terminal's default style.
+    private void printRow(Cell[] row, Map<Style, String> escapes, StringBuilder text) {
+        int end = row.length;
+        while (end > 0 && (row[end - 1] == null || row[end - 1].symbol().equals(" ")
+                && (escapes == null || row[end - 1].style().bg().isEmpty()))) {
+            end--;
+        }
+        Style current = Style.EMPTY;
+        for (int x = 0; x < end; x++) {
+            Cell cell = row[x];
+            if (cell == Line.COVERED) continue;
+            Style style = cell != null ? cell.style() : styles.base();
+            if (escapes != null && !style.equals(current)) {
+                text.append(escapes.computeIfAbsent(style, Markdown::escape));
+                current = style;
+            }
+            text.append(cell != null ? cell.symbol() : " ");
+        }
+        if (!current.equals(Style.EMPTY)) {
+            text.append("\u001b[0m");
+        }
+    }
+
+    // The SGR sequence that resets the terminal's style and then sets this one.
+    private static String escape(Style style) {
+        StringBuilder sgr = new StringBuilder("\u001b[0");
+        for (Modifier modifier : style.effectiveModifiers()) {
+            int code = switch (modifier) {
+                case BOLD -> 1;
+                case DIM -> 2;
+                case ITALIC -> 3;
+                case UNDERLINED -> 4;
+                case SLOW_BLINK -> 5;
+                case RAPID_BLINK -> 6;
+                case REVERSED -> 7;
+                case HIDDEN -> 8;
+                case CROSSED_OUT -> 9;
+            };
+            sgr.append(';').append(code);
+        }
+        style.fg().ifPresent(color -> sgr.append(';').append(color.toAnsiForeground()));
+        style.bg().ifPresent(color -> sgr.append(';').append(color.toAnsiBackground()));
+        return sgr.append('m').toString();
+    }
+
+    // For states read from a file: lays out the chunks within a screen of the viewport, if they
+    // are not already. That replaces estimated heights with real ones, which moves the text
+    // under the viewport; the scroll anchor puts it back, possibly over other chunks.
+    private Layout chunkedLayout(State state, Rect area, MetricsRecorder recorder) {
+        Layout layout = state.layout(this, area.width());
+        for (int pass = 0; pass < 3; pass++) {
+            int scrollY = state.scrollY();
+            if (layout != null && state.file.isResident(this, area.width(), scrollY, scrollY + area.height())) {
+                break;
+            }
+            state.captureAnchor();
+            synchronized (state.engineLock) {
+                layout = layoutChunks(state, area.width(), scrollY - area.height(), scrollY + 2 * area.height(), recorder);
+                state.cacheLayout(this, layout, state.version());
+            }
+            state.restoreAnchor(layout);
+        }
+        return layout;
+    }
+
+    // Called with the state's engine lock held. Parses and lays out the chunks with rows in
+    // [from, to), drops the layouts of the others, and stands in a block of the chunk's height
+    // for each of those.
+    private Layout layoutChunks(State state, int width, int from, int to, MetricsRecorder recorder) {
+        FileSource file = state.file;
+        file.reset(this, width);
+        int first = file.chunkAt(Math.max(0, from));
+        int last = file.chunkAt(Math.max(0, to - 1));
+        for (int c = 0; c < file.chunkCount(); c++) {
+            if (c < first || c > last) {
+                file.setResident(c, null);
+            } else if (file.resident(c) == null) {
+                file.setResident(c, layoutChunk(state, file, c, width, recorder));
+            }
+        }
+
+        long start = recorder != null ? System.nanoTime() : 0;
+        int count = 0;
+        BlockLayout[] blocks = new BlockLayout[file.chunkCount() + 16];
+        int[] tops = new int[blocks.length];
+        int[] ends = new int[blocks.length];
+        int height = 0;
+        for (int c = 0; c < file.chunkCount(); c++) {
+            FileSource.Chunk chunk = file.resident(c);
+            int chunkBlocks = chunk != null ? chunk.blocks().length : 1;
+            if (count + chunkBlocks > blocks.length) {
+                int capacity = Math.max(blocks.length * 2, count + chunkBlocks);
+                blocks = Arrays.copyOf(blocks, capacity);
+                tops = Arrays.copyOf(tops, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+            }
+            int top = file.top(c);
+            if (chunk == null) {
+                Document placeholder = new Document();
+                placeholder.setSourceSpans(List.of(SourceSpan.of(file.lineStart(c), 0, file.charStart(c), file.charLength(c))));
+                blocks[count] = new BlockLayout(placeholder, 0, file.height(c), file.height(c), 0, List.of());
+                tops[count] = top;
+                height = Math.max(height, top + file.height(c));
+                ends[count] = height;
+                count++;
+                continue;
+            }
+            for (int i = 0; i < chunkBlocks; i++) {
+                BlockLayout block = chunk.blocks()[i];
+                blocks[count] = block;
+                tops[count] = top + chunk.tops()[i];
+                height = Math.max(height, tops[count] + block.extent);
+                ends[count] = height;
+                count++;
+            }
+        }
+        if (recorder != null) recorder.layoutNanos += System.nanoTime() - start;
+        return new Layout(width, blocks, tops, ends, count, state.tableMeasures, state.mathTokens, state.codeTokens);
+    }
+
+    private FileSource.Chunk layoutChunk(State state, FileSource file, int c, int width, MetricsRecorder recorder) {
+        long start = recorder != null ? System.nanoTime() : 0;
+        Node document = parser.parse(file.text(c));
+        state.parseCacheMisses++;
+        for (Node node = document.getFirstChild(); node != null; node = node.getNext()) {
+            State.shiftSourceSpans(node, file.lineStart(c), file.charStart(c));
+        }
+        if (recorder != null) {
+            long now = System.nanoTime();
+            recorder.parseNanos += now - start;
+            start = now;
+        }
+        List<BlockLayout> blocks = new ArrayList<>();
+        int[] tops = new int[16];
+        int top = 0;
+        int x = 0;
+        for (Node node = document.getFirstChild(); node != null; node = node.getNext()) {
+            BlockLayout block = RenderVisitor.layoutBlock(node, width, styles, x, !culling,
+                    state.tableMeasures, state.mathTokens, state.codeTokens);
+            if (recorder != null) {
+                recorder.blockCacheMisses++;
+                recorder.laidOut(block);
+            }
+            if (blocks.size() == tops.length) tops = Arrays.copyOf(tops, tops.length * 2);
+            tops[blocks.size()] = top;
+            blocks.add(block);
+            top += block.advance;
+            x = block.endX;
+        }
+        if (recorder != null) recorder.layoutNanos += System.nanoTime() - start;
+        return new FileSource.Chunk(blocks.toArray(new BlockLayout[0]), Arrays.copyOf(tops, blocks.size()), top);
+    }
+
+    // Called with the state's engine lock held. Returns null if the job was cancelled.
+    private Layout buildLayout(State state, int width, State.Source source, LayoutJob job, MetricsRecorder recorder) {
+        long start = recorder != null ? System.nanoTime() : 0;
+        Node document = state.document(parser, source);
+        CharSequence text = source.text();
+        if (recorder != null) {
+            long now = System.nanoTime();
+            recorder.parseNanos += now - start;
+            start = now;
+        }
+
+        // After append() the leading blocks are the very same nodes as in the previous layout;
+        // keep their layouts and positions and only lay out what follows them.
+        Layout stale = state.staleLayout(this, width);
+        int frozen = stale != null ? stale.frozenPrefix(document) : 0;
+        Map<BlockKey, BlockLayout> cache;
+        Map<BlockKey, BlockLayout> previous;
+        Node node;
+        if (frozen > 0) {
+            cache = state.blockCache();
+            for (int i = frozen; i < stale.blockCount(); i++) {
+                BlockKey key = stale.block(i).key;
+                if (key != null) cache.remove(key);
+            }
+            previous = new HashMap<>();
+            node = stale.block(frozen - 1).node.getNext();
+        } else {
+            previous = state.blockCache(this, width, definitions(document, text));
+            cache = new HashMap<>();
+            node = document.getFirstChild();
+        }
+
+        // Blocks laid out ahead of time, in parallel, at the column the previous block usually
+        // ends on; any that turn out to start elsewhere are laid out again below.
+        BlockLayout[] speculative = parallelLayout ? layoutInParallel(state, width, node, text, previous, job) : null;
+        int index = 0;
+
+        int count = frozen;
+        BlockLayout[] blocks = frozen > 0 ? Arrays.copyOf(stale.blocks, stale.blocks.length) : new BlockLayout[16];
+        int[] tops = frozen > 0 ? Arrays.copyOf(stale.tops, blocks.length) : new int[16];
+        int[] ends = frozen > 0 ? Arrays.copyOf(stale.ends, blocks.length) : new int[16];
+        int top = frozen > 0 ? tops[frozen - 1] + blocks[frozen - 1].advance : 0;
+        int x = frozen > 0 ? blocks[frozen - 1].endX : 0;
+        int height = frozen > 0 ? ends[frozen - 1] : 0;
+        for (; node != null; node = node.getNext(), index++) {
+            if (job != null && job.cancelled) {
+                return null;
+            }
+            String blockSource = sourceOf(node, text);
+            BlockKey key = blockSource != null ? new BlockKey(blockSource, x) : null;
+            // Removed on use so that repeated blocks never share a layout
+            BlockLayout block = key != null ? previous.remove(key) : null;
+            if (block == null) {
+                block = speculative != null && speculative[index] != null && speculative[index].startX == x
+                        ? speculative[index]
+                        : RenderVisitor.layoutBlock(node, width, styles, x, !culling,
+                                state.tableMeasures, state.mathTokens, state.codeTokens);
+                block.key = key;
+                if (recorder != null) {
+                    recorder.blockCacheMisses++;
+                    recorder.laidOut(block);
+                }
+            } else {
+                block.node = node;
+                if (recorder != null) recorder.blockCacheHits++;
+            }
+            if (key != null) cache.put(key, block);
+
+            if (count == blocks.length) {
+                blocks = Arrays.copyOf(blocks, count * 2);
+                tops = Arrays.copyOf(tops, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            height = Math.max(height, top + block.extent);
+            blocks[count] = block;
+            tops[count] = top;
+            ends[count] = height;
+            count++;
+            top += block.advance;
+            x = block.endX;
+        }
+        state.setBlockCache(cache);
+        if (recorder != null) recorder.layoutNanos += System.nanoTime() - start;
+        return new Layout(width, blocks, tops, ends, count, state.tableMeasures, state.mathTokens, state.codeTokens);
+    }
+
+    // Lays out the blocks from first on, each at column 0, as a parallel stream, which runs
+    // on the common fork-join pool. Blocks the block cache will supply are left out, and so
+    // is everything once the job is cancelled.
+    private BlockLayout[] layoutInParallel(State state, int width, Node first, CharSequence text,
+                                           Map<BlockKey, BlockLayout> previous, LayoutJob job) {
+        List<Node> nodes = new ArrayList<>();
+        for (Node node = first; node != null; node = node.getNext()) {
+            nodes.add(node);
+        }
+        BlockLayout[] laidOut = new BlockLayout[nodes.size()];
+        IntStream.range(0, nodes.size()).parallel().forEach(i -> {
+            if (job != null && job.cancelled) return;
+            Node node = nodes.get(i);
+            String blockSource = sourceOf(node, text);
+            if (blockSource == null || !previous.containsKey(new BlockKey(blockSource, 0))) {
+                laidOut[i] = RenderVisitor.layoutBlock(node, width, styles, 0, !culling,
+                        state.tableMeasures, state.mathTokens, state.codeTokens);
+            }
+        });
+        return laidOut;
+    }
+
+    private static String sourceOf(Node node, CharSequence text) {
+        List<SourceSpan> spans = node.getSourceSpans();
+        if (spans.isEmpty()) return null;
+        SourceSpan last = spans.get(spans.size() - 1);
+        return text.subSequence(spans.get(0).getInputIndex(), last.getInputIndex() + last.getLength()).toString();
+    }
+
+    // Link reference definitions change how other blocks render, so the per-block cache
+    // is only valid while they stay the same.
+    private static String definitions(Node document, CharSequence text) {
+        StringBuilder sb = new StringBuilder();
+        for (Node node = document.getFirstChild(); node != null; node = node.getNext()) {
+            if (node instanceof LinkReferenceDefinition) {
+                sb.append(sourceOf(node, text)).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Accumulates the metrics of one render; only allocated when a listener is set. */
+    static final class MetricsRecorder {
+        private final long parseHitsBefore;
+        private final long parseMissesBefore;
+        private final long layoutHitsBefore;
+        private final long layoutMissesBefore;
+        private final long evictionsBefore;
+        long parseNanos;
+        long layoutNanos;
+        long paintNanos;
+        int nodesVisited;
+        int linesLaidOut;
+        int cellsWritten;
+        int blockCacheHits;
+        int blockCacheMisses;
+
+        MetricsRecorder(State state) {
+            parseHitsBefore = state.parseCacheHits();
+            parseMissesBefore = state.parseCacheMisses();
+            layoutHitsBefore = state.layoutCacheHits();
+            layoutMissesBefore = state.layoutCacheMisses();
+            evictionsBefore = state.layoutEvictions();
+        }
+
+        void laidOut(BlockLayout block) {
+            if (block.lines != null) linesLaidOut += block.lines.size();
+            nodesVisited += countNodes(block.node);
+        }
+
+        private static int countNodes(Node node) {
+            int count = 1;
+            for (Node child = node.getFirstChild(); child != null; child = child.getNext()) {
+                count += countNodes(child);
+            }
+            return count;
+        }
+
+        RenderMetrics finish(State state) {
+            return new RenderMetrics(parseNanos, layoutNanos, paintNanos, nodesVisited, linesLaidOut, cellsWritten,
+                    state.parseCacheHits() - parseHitsBefore, state.parseCacheMisses() - parseMissesBefore,
+                    state.layoutCacheHits() - layoutHitsBefore, state.layoutCacheMisses() - layoutMissesBefore,
+                    blockCacheHits, blockCacheMisses, state.layoutEvictions() - evictionsBefore, state.layoutCells());
+        }
+    }
+
+    /** A finished layout and the widget and text version it was built for. */
+    record Frame(Layout layout, Markdown owner, long version) {
+    }
+
+    /**
+     * Parses and lays out one snapshot of the text on a virtual thread, then publishes the
+     * result to the state. A cancelled job stops at the next top-level block and publishes
+     * nothing; jobs queue on the state's engine lock, so they never run concurrently.
+     */
+    static final class LayoutJob {
+        final State state;
+        final Markdown owner;
+        final int width;
+        final State.Source source;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        volatile boolean cancelled;
+
+        LayoutJob(State state, Markdown owner, int width, State.Source source) {
+            this.state = state;
+            this.owner = owner;
+            this.width = width;
+            this.source = source;
+        }
+
+        void start() {
+            Thread.ofVirtual().name("markdown-layout").start(this::run);
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        private void run() {
+            try {
+                synchronized (state.engineLock) {
+                    if (!cancelled) {
+                        MetricsRecorder recorder = owner.metrics != null ? new MetricsRecorder(state) : null;
+                        Layout layout = owner.buildLayout(state, width, source, this, recorder);
+                        if (layout != null && !cancelled) {
+                            state.cacheLayout(owner, layout, source.version());
+                            if (recorder != null) owner.metrics.onRender(recorder.finish(state));
+                        }
+                    }
+                }
+                done.complete(null);
+            } catch (Throwable t) {
+                done.completeExceptionally(t);
+            }
+        }
+    }
+
+    /** Identifies a top-level block layout: its source and the column the block starts in. */
+    record BlockKey(String source, int startX) {
+    }
+
+    /**
+     * The layout of one top-level block, in rows relative to its own first row. Only depends
+     * on the block's source, the width and the starting column, so it survives edits to other
+     * blocks. {@code lines} is {@code null} while the block has only been measured.
+     */
+    static final class BlockLayout {
+        // Volatile because an async layout may hand a reused block a new node, and culling
+        // fills in lines on the rendering thread.
+        volatile Node node;
+        BlockKey key;
+        final int startX;
+        final int advance;
+        final int extent;
+        final int endX;
+        volatile List<Line> lines;
+        // Set for top-level tables.
+        TableRows rows;
+        // Rows and source offsets, relative to the block, where nested blocks start; may be null.
+        int[] markRows;
+        int[] markOffsets;
+        // Cells held by lines, when laid out as a whole; virtualized tables count their rows.
+        int cells;
+        // Columns spanned by its unwrapped code blocks and tables, or 0.
+        int scrollWidth;
+        // Read from a snapshot: where its lines are saved. Its node only holds its source offset.
+        LayoutSnapshot.SavedLines saved;
+        // Its rows as text, once searched.
+        TextSearch.BlockText searchText;
+
+        BlockLayout(Node node, int startX, int advance, int extent, int endX, List<Line> lines) {
+            this.node = node;
+            this.startX = startX;
+            this.advance = advance;
+            this.extent = extent;
+            this.endX = endX;
+            this.lines = lines;
+        }
+
+        int cellsHeld() {
+            return rows != null && rows.lines != null ? rows.cells : cells;
+        }
+
+        // Drops what was laid out, keeping the measurements; the rendering thread lays it out
+        // again when it is next in view.
+        void evict() {
+            if (rows != null && rows.lines != null) {
+                Arrays.fill(rows.lines, null);
+                rows.cells = 0;
+            } else {
+                lines = null;
+                cells = 0;
+            }
+        }
+    }
+
+    /**
+     * The rows of a top-level table and the block row each one starts at, so that the rows in
+     * view can be found with a binary search. When the table was only measured, {@code lines}
+     * holds the rows laid out so far; the block's lines are a view of it.
+     */
+    static final class TableRows {
+        final Node[] rows;
+        final int[] tops;
+        final int headerRows;
+        // Header rows and the separator below them
+        final int headerHeight;
+        final int end;
+        final int[] colWidths;
+        final Line[] lines;
+        // Cells held by the rows laid out so far.
+        int cells;
+
+        private TableRows(Node[] rows, int[] tops, int headerRows, int headerHeight, int end, int[] colWidths, Line[] lines) {
+            this.rows = rows;
+            this.tops = tops;
+            this.headerRows = headerRows;
+            this.headerHeight = headerHeight;
+            this.end = end;
+            this.colWidths = colWidths;
+            this.lines = lines;
         }
 
-        public int scrollY() {
-            return scrollY;
+        static TableRows of(TableBlock table, int top, int[] colWidths, TableMeasure.Heights heights, Line[] lines) {
+            int[] rowHeights = heights.rowHeights();
+            Node[] rows = new Node[rowHeights.length];
+            int count = 0;
+            int headerRows = 0;
+            for (Node section = table.getFirstChild(); section != null; section = section.getNext()) {
+                for (Node row = section.getFirstChild(); row != null && count < rows.length; row = row.getNext()) {
+                    rows[count++] = row;
+                    if (section instanceof TableHead) headerRows++;
+                }
+            }
+            int[] tops = new int[rowHeights.length];
+            int y = top;
+            for (int i = 0; i < rowHeights.length; i++) {
+                tops[i] = y;
+                y += rowHeights[i];
+                if (i == headerRows - 1) y++;
+            }
+            int headerHeight = headerRows > 0 ? tops[headerRows - 1] + rowHeights[headerRows - 1] + 1 - top : 0;
+            return new TableRows(rows, tops, headerRows, headerHeight, y, colWidths, lines);
         }
 
-        public int maxScrollY() {
-            return maxScrollY;
+        // The rows of a table read from a snapshot, all laid out in the block's lines.
+        static TableRows restored(Node[] rows, int[] tops, int headerRows, int headerHeight, int end, int[] colWidths) {
+            return new TableRows(rows, tops, headerRows, headerHeight, end, colWidths, null);
         }
 
-        public void setScrollY(int scrollY) {
-            this.scrollY = Math.max(0, Math.min(scrollY, maxScrollY));
+        int top() {
+            return tops.length > 0 ? tops[0] : end;
         }
 
-        public void setMaxScrollY(int maxScrollY) {
-            this.maxScrollY = maxScrollY;
-            this.scrollY = Math.min(this.scrollY, this.maxScrollY);
+        // Index of the row that covers block row y, or of the first row if y is above the table.
+        int rowAt(int y) {
+            int lo = 0;
+            int hi = tops.length - 1;
+            int found = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (tops[mid] <= y) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
         }
 
-        public void scrollUp() {
-            setScrollY(scrollY - 1);
+        // Lays out the rows that cover block rows [from, to) and are not laid out yet.
+        int materialize(int from, int to, int width, StyleTable styles, Map<Node, TableMeasure> tableMeasures,
+                        Map<Node, MathTokens> mathTokens, Map<Node, CodeTokens> codeTokens) {
+            int laidOut = 0;
+            int r = rowAt(from);
+            while (r < tops.length && tops[r] < to) {
+                if (lines[tops[r]] != null) {
+                    r++;
+                    continue;
+                }
+                int start = r;
+                while (r < tops.length && tops[r] < to && lines[tops[r]] == null) {
+                    r++;
+                }
+                laidOut += RenderVisitor.layoutTableRows(this, start, r, width, styles, tableMeasures, mathTokens, codeTokens);
+            }
+            return laidOut;
         }
 
-        public void scrollDown() {
-            setScrollY(scrollY + 1);
+        // Drops the laid out lines outside block rows [from, to), except the header's.
+        void evictOutside(int from, int to) {
+            int headerEnd = top() + headerHeight;
+            for (int y = 0; y < lines.length; y++) {
+                if ((y < from || y >= to) && (y < top() || y >= headerEnd) && lines[y] != null) {
+                    cells -= lines[y].size();
+                    lines[y] = null;
+                }
+            }
         }
+    }
 
-        public void scrollToBottom() {
-            setScrollY(maxScrollY);
+    /**
+     * The result of the layout pass: the document's top-level blocks and the row each one
+     * starts at, relative to the top-left corner of the area. It only depends on the document
+     * and the width, so it can be painted at any scroll offset without walking the AST again.
+     */
+    static final class Layout {
+        private final int width;
+        // Arrays may have spare capacity past count; ends[i] is the height of blocks 0..i.
+        private final BlockLayout[] blocks;
+        private final int[] tops;
+        private final int[] ends;
+        private final int count;
+        private final Map<Node, TableMeasure> tableMeasures;
+        private final Map<Node, MathTokens> mathTokens;
+        private final Map<Node, CodeTokens> codeTokens;
+        private volatile LineIndex index;
+        private int scrollWidth = -1;
+        // Read from a snapshot: blocks are decoded as they come into view, as with culling.
+        boolean restored;
+
+        Layout(int width, BlockLayout[] blocks, int[] tops, int[] ends, int count, Map<Node, TableMeasure> tableMeasures,
+               Map<Node, MathTokens> mathTokens, Map<Node, CodeTokens> codeTokens) {
+            this.width = width;
+            this.blocks = blocks;
+            this.tops = tops;
+            this.ends = ends;
+            this.count = count;
+            this.tableMeasures = tableMeasures;
+            this.mathTokens = mathTokens;
+            this.codeTokens = codeTokens;
         }
-    }
 
-    private final Style baseStyle;
-    private final Parser parser;
+        int width() {
+            return width;
+        }
 
-    public Markdown(Style baseStyle) {
-        this.baseStyle = baseStyle;
-        this.parser = Parser.builder()
-                .extensions(Arrays.asList(
-                        TablesExtension.create(),
-                        StrikethroughExtension.create(),
-                        AutolinkExtension.create(),
-                        TaskListItemsExtension.create()
-                ))
-                .build();
+        // Columns spanned by the widest unwrapped code block or table.
+        int scrollWidth() {
+            int scrollWidth = this.scrollWidth;
+            if (scrollWidth < 0) {
+                scrollWidth = 0;
+                for (int i = 0; i < count; i++) {
+                    scrollWidth = Math.max(scrollWidth, blocks[i].scrollWidth);
+                }
+                this.scrollWidth = scrollWidth;
+            }
+            return scrollWidth;
+        }
+
+        /**
+         * Source offset of the innermost block that starts at or above {@code row}, or -1. Looks
+         * up the top-level block, then the nested block or table row within it.
+         */
+        int sourceOffsetAt(int row) {
+            int i = LineIndex.lastAtOrBelow(tops, count, row);
+            if (i < 0) return -1;
+            BlockLayout block = blocks[i];
+            int start = LineIndex.startOffset(block.node);
+            if (start < 0) return -1;
+            int rel = row - tops[i];
+            if (block.markRows != null) {
+                int m = LineIndex.lastAtOrBelow(block.markRows, block.markRows.length, rel);
+                if (m >= 0) return start + block.markOffsets[m];
+            }
+            if (block.rows != null) {
+                int r = LineIndex.lastAtOrBelow(block.rows.tops, block.rows.tops.length, rel);
+                int offset = r >= 0 ? LineIndex.startOffset(block.rows.rows[r]) : -1;
+                if (offset >= 0) return offset;
+            }
+            return start;
+        }
+
+        /** The row where the innermost block containing {@code offset} starts, or -1 if there are no blocks. */
+        int rowOf(int offset) {
+            if (count == 0) return -1;
+            int i = 0;
+            int lo = 0;
+            int hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (LineIndex.startOffset(blocks[mid].node) <= offset) {
+                    i = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            BlockLayout block = blocks[i];
+            int start = LineIndex.startOffset(block.node);
+            int rel = 0;
+            if (block.markOffsets != null) {
+                int m = LineIndex.lastAtOrBelow(block.markOffsets, block.markOffsets.length, offset - start);
+                if (m >= 0) rel = block.markRows[m];
+            }
+            if (block.rows != null) {
+                Node[] rows = block.rows.rows;
+                int r = -1;
+                lo = 0;
+                hi = rows.length - 1;
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (LineIndex.startOffset(rows[mid]) <= offset) {
+                        r = mid;
+                        lo = mid + 1;
+                    } else {
+                        hi = mid - 1;
+                    }
+                }
+                if (r >= 0) rel = block.rows.tops[r];
+            }
+            return tops[i] + rel;
+        }
+
+        /**
+         * The row where a node of the laid out document starts, or -1. Blocks and table rows
+         * are found through the marks and row tops; other nodes, such as inlines, map to their
+         * enclosing block.
+         */
+        int rowOf(Node node) {
+            for (Node n = node; n != null && !(n instanceof Document); n = n.getParent()) {
+                int offset = LineIndex.startsRow(n) ? LineIndex.startOffset(n) : -1;
+                if (offset >= 0) return rowOf(offset);
+            }
+            return -1;
+        }
+
+        /** The innermost block or table row that starts at or above {@code row}, or null if there is none. */
+        Node nodeAt(int row) {
+            int offset = sourceOffsetAt(row);
+            if (offset < 0) return null;
+            Node node = blocks[LineIndex.lastAtOrBelow(tops, count, row)].node;
+            while (true) {
+                Node inner = null;
+                for (Node child = node.getFirstChild(); child != null; child = child.getNext()) {
+                    int start = LineIndex.startsRow(child) ? LineIndex.startOffset(child) : -1;
+                    if (start >= 0 && start <= offset) inner = child;
+                }
+                if (inner == null) return node;
+                node = inner;
+            }
+        }
+
+        LineIndex index() {
+            LineIndex index = this.index;
+            if (index == null) {
+                index = LineIndex.of(this);
+                this.index = index;
+            }
+            return index;
+        }
+
+        int height() {
+            return count > 0 ? ends[count - 1] : 0;
+        }
+
+        int blockCount() {
+            return count;
+        }
+
+        // Number of leading blocks whose node is still attached to the document. After
+        // append() only a suffix of the top-level nodes is replaced, so this is a binary search.
+        int frozenPrefix(Node document) {
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (blocks[mid].node.getParent() == document) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        BlockLayout block(int index) {
+            return blocks[index];
+        }
+
+        int top(int index) {
+            return tops[index];
+        }
+
+        // Index of the first block that has a row at or below scrollY.
+        private int firstVisible(int scrollY) {
+            int lo = 0;
+            int hi = count - 1;
+            int found = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (tops[mid] <= scrollY) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            while (found > 0 && tops[found - 1] + blocks[found - 1].extent > scrollY) {
+                found--;
+            }
+            return found;
+        }
+
+        // Lays out the blocks in view that are only measured, or decodes them if restored from a
+        // snapshot. With a budget, also marks them as painted and evicts blocks out of view, then
+        // rows of tables in view, until within it.
+        void materialize(int scrollY, int height, StyleTable styles, boolean stickyHeaders, MetricsRecorder recorder,
+                         LineBudget budget, long limit) {
+            int bottom = scrollY + height;
+            int first = firstVisible(scrollY);
+            int last = first;
+            for (; last < count && tops[last] < bottom; last++) {
+                BlockLayout block = blocks[last];
+                TableRows rows = block.rows;
+                if (rows != null && rows.lines != null) {
+                    int laidOut = rows.materialize(scrollY - tops[last], bottom - tops[last], width, styles,
+                            tableMeasures, mathTokens, codeTokens);
+                    if (stickyHeaders && rows.headerRows > 0) {
+                        laidOut += rows.materialize(rows.top(), rows.top() + rows.headerHeight, width, styles,
+                                tableMeasures, mathTokens, codeTokens);
+                    }
+                    if (recorder != null) recorder.linesLaidOut += laidOut;
+                } else if (block.lines == null && block.saved != null) {
+                    block.cells = block.saved.cells;
+                    block.lines = block.saved.lines();
+                } else if (block.lines == null) {
+                    BlockLayout laidOut = RenderVisitor.layoutBlock(block.node, width, styles, block.startX, true,
+                            tableMeasures, mathTokens, codeTokens);
+                    block.cells = laidOut.cells;
+                    block.lines = laidOut.lines;
+                    if (recorder != null) recorder.laidOut(block);
+                }
+                if (budget != null) budget.painted(block);
+            }
+            if (budget != null) {
+                budget.trim(limit, last - first);
+                for (int i = first; i < last; i++) {
+                    budget.trimRows(blocks[i], scrollY - tops[i], bottom - tops[i], limit);
+                }
+            }
+        }
+
+        // Every line of block i, laid out or decoded for the occasion if it is culled, evicted or
+        // a table laid out row by row; the block itself keeps only what it held.
+        List<Line> allLines(int i, StyleTable styles) {
+            BlockLayout block = blocks[i];
+            List<Line> lines = block.lines;
+            if (lines != null && (block.rows == null || block.rows.lines == null)) {
+                return lines;
+            }
+            if (block.saved != null) {
+                return block.saved.lines();
+            }
+            return RenderVisitor.layoutBlock(block.node, width, styles, block.startX, true,
+                    tableMeasures, mathTokens, codeTokens).lines;
+        }
+
+        /** The line shown on each of the {@code height} rows from {@code scrollY}; null for blank rows. */
+        Line[] rowsInView(int scrollY, int height, boolean stickyHeaders) {
+            Line[] rows = new Line[height];
+            int bottom = scrollY + height;
+            for (int i = firstVisible(scrollY); i < count && tops[i] < bottom; i++) {
+                List<Line> lines = blocks[i].lines;
+                if (lines == null) continue;
+                int from = Math.max(0, scrollY - tops[i]);
+                int to = Math.min(lines.size(), bottom - tops[i]);
+                for (int row = from; row < to; row++) {
+                    Line line = lines.get(row);
+                    int y = tops[i] + row - scrollY;
+                    if (line != null) {
+                        rows[y] = rows[y] != null ? Line.merge(rows[y], line) : line;
+                    }
+                }
+            }
+            if (stickyHeaders) {
+                putStickyHeader(rows, scrollY);
+            }
+            return rows;
+        }
+
+        // Pins the header of the table at the top of the area once it has scrolled past it,
+        // until the table's last rows would be hidden under it.
+        void putStickyHeader(Line[] rows, int scrollY) {
+            if (count == 0) {
+                return;
+            }
+            int i = firstVisible(scrollY);
+            TableRows tableRows = blocks[i].rows;
+            List<Line> lines = blocks[i].lines;
+            if (tableRows == null || tableRows.headerRows == 0 || lines == null
+                    || scrollY <= tops[i] + tableRows.top() || scrollY >= tops[i] + tableRows.end - tableRows.headerHeight) {
+                return;
+            }
+            for (int row = 0; row < Math.min(tableRows.headerHeight, rows.length); row++) {
+                rows[row] = lines.get(tableRows.top() + row);
+            }
+        }
     }
 
-    @Override
-    public void render(Rect area, Buffer buffer, State state) {
-        if (state.text() == null || state.text().isEmpty()) {
-            return;
+    /**
+     * One rendered row: cells in the order they were laid out, each with its column and the
+     * theme elements its style was derived through, kept as runs of cells sharing a path. Rows
+     * of unwrapped code blocks and tables pan with the state's horizontal scroll.
+     */
+    static final class Line {
+        private int[] cols = new int[16];
+        private Cell[] cells = new Cell[16];
+        private int size;
+        private int[] runStarts = new int[4];
+        private StyleTable.Derived[] runStyles = new StyleTable.Derived[4];
+        private int runs;
+        boolean pans;
+
+        void add(int col, Cell cell, StyleTable.Derived derived) {
+            if (size == cells.length) {
+                cols = Arrays.copyOf(cols, Math.max(16, size * 2));
+                cells = Arrays.copyOf(cells, Math.max(16, size * 2));
+            }
+            if (runs == 0 || runStyles[runs - 1] != derived) {
+                if (runs == runStyles.length) {
+                    runStarts = Arrays.copyOf(runStarts, Math.max(4, runs * 2));
+                    runStyles = Arrays.copyOf(runStyles, Math.max(4, runs * 2));
+                }
+                runStarts[runs] = size;
+                runStyles[runs] = derived;
+                runs++;
+            }
+            cols[size] = col;
+            cells[size] = cell;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int col(int i) {
+            return cols[i];
+        }
+
+        Cell cell(int i) {
+            return cells[i];
+        }
+
+        /** The path the style of cell {@code i} was derived through. */
+        StyleTable.Derived derived(int i) {
+            int lo = 0;
+            int hi = runs - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (runStarts[mid] <= i) lo = mid;
+                else hi = mid - 1;
+            }
+            return runStyles[lo];
+        }
+
+        void trim() {
+            cols = Arrays.copyOf(cols, size);
+            cells = Arrays.copyOf(cells, size);
+            runStarts = Arrays.copyOf(runStarts, runs);
+            runStyles = Arrays.copyOf(runStyles, runs);
+        }
+
+        // Two blocks sharing a row: the cells of both, the second painted over the first.
+        static Line merge(Line first, Line second) {
+            Line merged = new Line();
+            merged.pans = first.pans || second.pans;
+            for (int c = 0; c < first.size; c++) merged.add(first.cols[c], first.cells[c], first.derived(c));
+            for (int c = 0; c < second.size; c++) merged.add(second.cols[c], second.cells[c], second.derived(c));
+            merged.trim();
+            return merged;
+        }
+
+        int paint(Rect area, Buffer buffer, int y, int scrollX) {
+            int shift = pans ? scrollX : 0;
+            int written = 0;
+            for (int c = 0; c < size; c++) {
+                int col = cols[c] - shift;
+                if (col >= 0 && col < area.width()) {
+                    buffer.set(area.x() + col, y, cells[c]);
+                    written++;
+                }
+            }
+            return written;
         }
 
-        Node document = parser.parse(state.text());
-        RenderVisitor visitor = new RenderVisitor(area, buffer, baseStyle, state);
-        document.accept(visitor);
-        state.setMaxScrollY(Math.max(0, visitor.getTotalHeight() - area.height()));
+        // Spreads the cells over one row of the area, panned by scrollX if this row pans;
+        // columns covered by a wide glyph to their left are set to COVERED.
+        void spread(Cell[] row, int scrollX) {
+            Arrays.fill(row, null);
+            int shift = pans ? scrollX : 0;
+            for (int c = 0; c < size; c++) {
+                int col = cols[c] - shift;
+                if (col >= row.length) continue;
+                if (col >= 0) row[col] = cells[c];
+                String symbol = cells[c].symbol();
+                if (symbol.length() > 1 || symbol.charAt(0) >= 0x1100) {
+                    int width = Graphemes.width(symbol, 0, symbol.length());
+                    for (int x = Math.max(0, col + 1); x < col + width && x < row.length; x++) {
+                        row[x] = COVERED;
+                    }
+                }
+            }
+        }
+
+        static final Cell COVERED = new Cell("", Style.EMPTY);
     }
 
     private static class RenderVisitor extends AbstractVisitor {
-        private Rect area;
-        private final Buffer buffer;
+        // Horizontal bounds of the current flow; narrowed to the cell while laying out tables.
+        private int left;
+        private int right;
+        private final List<Line> lines = new ArrayList<>();
 
         private int currentX;
         private int currentY;
 
-        private Style currentStyle;
+        private StyleTable.Derived currentStyle;
         private TableContext currentTableContext = null;
 
+        // Where the outermost table starts and its column widths, for TableRows.
+        private int tableTop;
+        private int[] tableColWidths;
+
+        // Set while laying out an unwrapped code block or table, whose lines pan, and the
+        // columns those span.
+        private boolean panning;
+        private int scrollWidth;
+
+        // Row and source offset of each nested block, for the layout's LineIndex. A mark's row
+        // is where the first text after it lands; until then it is only a guess.
+        private int[] markRows;
+        private int[] markOffsets;
+        private int marks;
+        private int resolvedMarks;
+
         private class TableContext {
             int[] colWidths;
             int[] colXs;
             int rowStartY;
             int currentCol;
             int maxRowHeight;
+            int[] rowHeights = new int[16];
+            int rows;
 
             TableContext(int[] colWidths, int startX) {
                 this.colWidths = colWidths;
@@ -134,6 +2374,13 @@ public class Markdown implements StatefulWidget<Markdown.State> {
                     maxRowHeight = h;
                 }
             }
+
+            void endRow() {
+                if (rows == rowHeights.length) {
+                    rowHeights = Arrays.copyOf(rowHeights, rows * 2);
+                }
+                rowHeights[rows++] = maxRowHeight;
+            }
         }
 
         private int countColumns(TableBlock table) {
@@ -153,22 +2400,118 @@ public class Markdown implements StatefulWidget<Markdown.State> {
             return 0;
         }
 
-        private final State state;
         private int totalHeight = 0;
 
-        public RenderVisitor(Rect area, Buffer buffer, Style baseStyle, State state) {
-            this.area = area;
-            this.buffer = buffer;
-            this.currentX = area.x();
-            this.currentY = area.y() - state.scrollY();
-            this.currentStyle = baseStyle;
-            this.state = state;
+        // When only measuring, cells are dropped and just the cursor and height are tracked.
+        private final boolean recording;
+        private final StyleTable styles;
+        private final Map<Node, TableMeasure> tableMeasures;
+        private final Map<Node, MathTokens> mathTokens;
+        private final Map<Node, CodeTokens> codeTokens;
+
+        public RenderVisitor(int width, StyleTable styles, int startX, boolean recording,
+                             Map<Node, TableMeasure> tableMeasures, Map<Node, MathTokens> mathTokens,
+                             Map<Node, CodeTokens> codeTokens) {
+            this.tableMeasures = tableMeasures;
+            this.mathTokens = mathTokens;
+            this.codeTokens = codeTokens;
+            this.left = 0;
+            this.right = width;
+            this.currentX = startX;
+            this.currentY = 0;
+            this.styles = styles;
+            this.currentStyle = styles.root();
+            this.recording = recording;
+        }
+
+        static BlockLayout layoutBlock(Node block, int width, StyleTable styles, int startX, boolean recording,
+                                       Map<Node, TableMeasure> tableMeasures, Map<Node, MathTokens> mathTokens,
+                                       Map<Node, CodeTokens> codeTokens) {
+            RenderVisitor visitor = new RenderVisitor(width, styles, startX, recording, tableMeasures, mathTokens, codeTokens);
+            block.accept(visitor);
+            List<Line> lines = null;
+            int cells = 0;
+            if (recording) {
+                for (Line line : visitor.lines) {
+                    if (line != null) {
+                        line.trim();
+                        cells += line.size();
+                    }
+                }
+                lines = visitor.lines;
+            }
+            TableRows rows = null;
+            if (block instanceof TableBlock table && visitor.tableColWidths != null) {
+                TableMeasure.Heights heights = tableMeasures.get(table).heights(visitor.tableColWidths);
+                // A measured table is laid out a few rows at a time, as they scroll into view
+                Line[] rowLines = recording ? null : new Line[visitor.totalHeight];
+                rows = TableRows.of(table, visitor.tableTop, visitor.tableColWidths, heights, rowLines);
+                if (rowLines != null) lines = Arrays.asList(rowLines);
+            }
+            BlockLayout layout = new BlockLayout(block, startX, visitor.currentY, visitor.totalHeight, visitor.currentX, lines);
+            layout.rows = rows;
+            layout.cells = cells;
+            layout.scrollWidth = visitor.scrollWidth;
+            int start = LineIndex.startOffset(block);
+            if (visitor.marks > 0 && start >= 0) {
+                // Relative to the block, so the marks stay right when a reused block moves
+                layout.markRows = Arrays.copyOf(visitor.markRows, visitor.marks);
+                layout.markOffsets = Arrays.copyOf(visitor.markOffsets, visitor.marks);
+                for (int m = 0; m < visitor.marks; m++) {
+                    layout.markOffsets[m] -= start;
+                }
+            }
+            return layout;
+        }
+
+        // Lays out rows [from, to) of a top-level table into the missing entries of rows.lines.
+        // Returns the number of lines laid out.
+        static int layoutTableRows(TableRows rows, int from, int to, int width, StyleTable styles,
+                                   Map<Node, TableMeasure> tableMeasures, Map<Node, MathTokens> mathTokens,
+                                   Map<Node, CodeTokens> codeTokens) {
+            RenderVisitor visitor = new RenderVisitor(width, styles, 0, true, tableMeasures, mathTokens, codeTokens);
+            visitor.currentTableContext = visitor.new TableContext(rows.colWidths, 0);
+            visitor.panning = styles.unwrapped();
+            int base = rows.tops[from];
+            for (int r = from; r < to; r++) {
+                visitor.currentY = rows.tops[r] - base;
+                visitor.currentX = 0;
+                rows.rows[r].accept(visitor);
+                if (r == rows.headerRows - 1) {
+                    visitor.putHeaderSeparator();
+                }
+            }
+            int laidOut = 0;
+            for (int y = 0; y < visitor.lines.size(); y++) {
+                Line line = visitor.lines.get(y);
+                if (line != null && rows.lines[base + y] == null) {
+                    line.trim();
+                    rows.lines[base + y] = line;
+                    rows.cells += line.size();
+                    laidOut++;
+                }
+            }
+            return laidOut;
         }
 
         public int getTotalHeight() {
             return totalHeight;
         }
 
+        private void put(int x, int y, Cell cell) {
+            if (!recording) return;
+            while (lines.size() <= y) {
+                lines.add(null);
+            }
+            Line line = lines.get(y);
+            if (line == null) {
+                line = new Line();
+                lines.set(y, line);
+            }
+            line.pans |= panning;
+            line.add(x, cell, currentStyle);
+        }
+
         @Override
         public void visit(Document document) {
             visitChildren(document);
@@ -176,11 +2519,11 @@ public class Markdown implements StatefulWidget<Markdown.State> {
 
         @Override
         public void visit(Heading heading) {
-            Style prevStyle = currentStyle;
-            currentStyle = currentStyle.bold().fg(Color.CYAN); // Style headings
+            StyleTable.Derived prevStyle = currentStyle;
+            currentStyle = styles.derive(currentStyle, Theme.Element.HEADING);
 
             // Advance Y if not at the beginning
-            if (currentX > area.x()) {
+            if (currentX > left) {
                 newLine();
             }
 
@@ -199,7 +2542,7 @@ public class Markdown implements StatefulWidget<Markdown.State> {
         public void visit(Paragraph paragraph) {
             boolean inListItem = paragraph.getParent() instanceof ListItem;
             boolean inBlockQuote = paragraph.getParent() instanceof BlockQuote;
-            if (currentX > area.x() && !inListItem && !inBlockQuote) {
+            if (currentX > left && !inListItem && !inBlockQuote) {
                 newLine();
             }
             visitChildren(paragraph);
@@ -218,61 +2561,39 @@ public class Markdown implements StatefulWidget<Markdown.State> {
 
         @Override
         public void visit(StrongEmphasis strongEmphasis) {
-            Style prev = currentStyle;
-            currentStyle = currentStyle.bold();
+            StyleTable.Derived prev = currentStyle;
+            currentStyle = styles.derive(currentStyle, Theme.Element.STRONG);
             visitChildren(strongEmphasis);
             currentStyle = prev;
         }
 
         @Override
         public void visit(Emphasis emphasis) {
-            Style prev = currentStyle;
-            currentStyle = currentStyle.italic();
+            StyleTable.Derived prev = currentStyle;
+            currentStyle = styles.derive(currentStyle, Theme.Element.EMPHASIS);
             visitChildren(emphasis);
             currentStyle = prev;
         }
 
-        private static final Pattern LATEX_CMD_PATTERN = Pattern.compile("\\\\(?:begin|end)\\{[^}]*\\}|\\\\\\\\|\\\\[a-zA-Z]+|\\\\.|&");
-
-        private void printMath(String mathText, Style baseMathStyle, Style cmdStyle) {
-            Matcher m = LATEX_CMD_PATTERN.matcher(mathText);
-            int lastEnd = 0;
-            while (m.find()) {
-                if (m.start() > lastEnd) {
-                    currentStyle = baseMathStyle;
-                    printText(mathText.substring(lastEnd, m.start()));
-                }
-
-                String match = m.group();
-                if (match.startsWith("\\begin") || match.startsWith("\\end") || match.equals("\\\\") || match.equals("&")
-                        || match.equals("\\left") || match.equals("\\right") || match.equals("\\quad") || match.equals("\\qquad")) {
-                    // Hide entirely
-                } else if (match.matches("\\\\[a-zA-Z]+")) {
-                    currentStyle = cmdStyle;
-                    printText(match.substring(1));
-                } else {
-                    currentStyle = baseMathStyle;
-                    printText(match.substring(1));
-                }
-
-                lastEnd = m.end();
-            }
-            if (lastEnd < mathText.length()) {
-                currentStyle = baseMathStyle;
-                printText(mathText.substring(lastEnd));
+        private void printMath(MathTokens.MathLine line, StyleTable.Derived mathStyle, StyleTable.Derived cmdStyle) {
+            for (MathTokens.Segment segment : line.segments()) {
+                currentStyle = segment.command() ? cmdStyle : mathStyle;
+                printText(line.text(), segment.start(), segment.end());
             }
         }
 
         @Override
         public void visit(Code code) {
-            Style prev = currentStyle;
+            StyleTable.Derived prev = currentStyle;
             String literal = code.getLiteral();
             if (literal.length() >= 2 && literal.startsWith("$") && literal.endsWith("$")) {
-                Style mathStyle = currentStyle.fg(Color.YELLOW);
-                Style cmdStyle = currentStyle.fg(Color.GREEN);
-                printMath(literal.substring(1, literal.length() - 1), mathStyle, cmdStyle);
+                StyleTable.Derived mathStyle = styles.derive(currentStyle, Theme.Element.MATH);
+                StyleTable.Derived cmdStyle = styles.derive(currentStyle, Theme.Element.MATH_COMMAND);
+                MathTokens math = mathTokens.computeIfAbsent(code,
+                        n -> MathTokens.inline(literal.substring(1, literal.length() - 1)));
+                printMath(math.lines()[0], mathStyle, cmdStyle);
             } else {
-                currentStyle = currentStyle.fg(Color.YELLOW).bg(Color.DARK_GRAY);
+                currentStyle = styles.derive(currentStyle, Theme.Element.CODE);
                 printText(literal);
             }
             currentStyle = prev;
@@ -298,7 +2619,7 @@ public class Markdown implements StatefulWidget<Markdown.State> {
 
         @Override
         public void visit(ListItem listItem) {
-            if (currentX > area.x()) {
+            if (currentX > left) {
                 newLine();
             }
 
@@ -321,9 +2642,9 @@ public class Markdown implements StatefulWidget<Markdown.State> {
 
         @Override
         public void visit(BlockQuote blockQuote) {
-            Style prev = currentStyle;
-            currentStyle = currentStyle.italic().fg(Color.GRAY);
-            if (currentX > area.x()) {
+            StyleTable.Derived prev = currentStyle;
+            currentStyle = styles.derive(currentStyle, Theme.Element.BLOCK_QUOTE);
+            if (currentX > left) {
                 newLine();
             }
             printText("> ");
@@ -331,114 +2652,50 @@ public class Markdown implements StatefulWidget<Markdown.State> {
             currentStyle = prev;
         }
 
-        private String extractText(Node node) {
-            StringBuilder sb = new StringBuilder();
-            node.accept(new AbstractVisitor() {
-                @Override public void visit(Text text) { sb.append(text.getLiteral()); }
-                @Override public void visit(Code code) { sb.append(code.getLiteral()); }
-                @Override public void visit(SoftLineBreak softLineBreak) { sb.append(" "); }
-                @Override public void visit(HtmlInline htmlInline) { sb.append(htmlInline.getLiteral()); }
-                @Override public void visit(Image image) {
-                    String altText = image.getTitle() != null ? image.getTitle() : "Image";
-                    sb.append("![").append(altText).append("](").append(image.getDestination()).append(")");
-                }
-            });
-            return sb.toString();
-        }
-
-        private int[] calculateColumnWidths(TableBlock table, int availableWidth) {
-            int numCols = countColumns(table);
-            if (numCols == 0) return new int[0];
-
-            int[] maxContentWidths = new int[numCols];
-            table.accept(new AbstractVisitor() {
-                int colIdx = 0;
-                @Override
-                public void visit(CustomNode customNode) {
-                    if (customNode instanceof TableRow) {
-                        colIdx = 0;
-                        visitChildren(customNode);
-                    } else if (customNode instanceof TableCell) {
-                        if (colIdx < numCols) {
-                            String text = extractText(customNode);
-                            int w = CharWidth.of(text);
-                            if (w > maxContentWidths[colIdx]) {
-                                maxContentWidths[colIdx] = w;
-                            }
-                        }
-                        colIdx++;
-                    } else {
-                        visitChildren(customNode);
-                    }
-                }
-                @Override
-                public void visit(CustomBlock customBlock) {
-                    visitChildren(customBlock); // Process children like TableHead/TableBody
-                }
-            });
-
-            for (int i=0; i<numCols; i++) {
-                if (maxContentWidths[i] == 0) maxContentWidths[i] = 1;
-            }
-
-            int totalBorders = 3 * numCols + 1;
-            int maxAvailableForContents = Math.max(numCols, availableWidth - totalBorders);
-            int[] actualWidths = new int[numCols];
-            int totalContents = 0;
-            for (int w : maxContentWidths) totalContents += w;
-
-            if (totalContents <= maxAvailableForContents) {
-                System.arraycopy(maxContentWidths, 0, actualWidths, 0, numCols);
-            } else {
-                // Fair share allocation
-                int[] sortedIndices = new int[numCols];
-                for (int i = 0; i < numCols; i++) sortedIndices[i] = i;
-                // Sort by maxContentWidths ascending
-                for (int i = 0; i < numCols - 1; i++) {
-                    for (int j = i + 1; j < numCols; j++) {
-                        if (maxContentWidths[sortedIndices[i]] > maxContentWidths[sortedIndices[j]]) {
-                            int temp = sortedIndices[i];
-                            sortedIndices[i] = sortedIndices[j];
-                            sortedIndices[j] = temp;
-                        }
-                    }
-                }
-
-                int remainingToDistribute = maxAvailableForContents;
-                int remainingCols = numCols;
-
-                for (int i = 0; i < numCols; i++) {
-                    int originalIdx = sortedIndices[i];
-                    int fairShare = remainingToDistribute / remainingCols;
-                    if (maxContentWidths[originalIdx] <= fairShare) {
-                        actualWidths[originalIdx] = maxContentWidths[originalIdx];
-                    } else {
-                        actualWidths[originalIdx] = fairShare;
-                    }
-                    remainingToDistribute -= actualWidths[originalIdx];
-                    remainingCols--;
-                }
-            }
-            return actualWidths;
-        }
-
         @Override
         public void visit(CustomBlock customBlock) {
             if (customBlock instanceof TableBlock) {
                 TableBlock table = (TableBlock) customBlock;
                 int numCols = countColumns(table);
                 if (numCols > 0) {
-                    int[] colWidths = calculateColumnWidths(table, area.width());
+                    TableMeasure measure = tableMeasures.get(table);
+                    if (measure == null || measure.intrinsicWidths().length != numCols) {
+                        measure = TableMeasure.of(table, numCols);
+                        tableMeasures.put(table, measure);
+                    }
+                    int[] colWidths = styles.unwrapped() ? measure.intrinsicWidths().clone() : measure.columnWidths(right - left);
                     TableContext prevTableContext = currentTableContext;
-                    currentTableContext = new TableContext(colWidths, area.x());
+                    currentTableContext = new TableContext(colWidths, left);
 
-                    if (currentX > area.x()) {
+                    if (currentX > left) {
                         newLine();
                         newLine(); // extra space before table
                     }
-                    visitChildren(table);
+                    if (prevTableContext == null) {
+                        tableTop = currentY;
+                        tableColWidths = colWidths;
+                    }
+                    // When only measuring, rows already laid out at these widths are not visited again
+                    TableMeasure.Heights heights = recording ? null : measure.heights(colWidths);
+                    boolean prevPanning = panning;
+                    if (styles.unwrapped()) {
+                        panning = true;
+                        int tableWidth = left + 1;
+                        for (int w : colWidths) tableWidth += w + 3;
+                        scrollWidth = Math.max(scrollWidth, tableWidth);
+                    }
+                    if (heights != null) {
+                        currentY += heights.height();
+                        currentX = left;
+                    } else {
+                        int startY = currentY;
+                        visitChildren(table);
+                        measure.setHeights(colWidths, Arrays.copyOf(currentTableContext.rowHeights, currentTableContext.rows),
+                                currentY - startY);
+                    }
 
                     currentTableContext = prevTableContext;
+                    panning = prevPanning;
                     newLine();
                 } else {
                     visitChildren(customBlock);
@@ -448,23 +2705,61 @@ public class Markdown implements StatefulWidget<Markdown.State> {
             }
         }
 
+        @Override
+        protected void visitChildren(Node parent) {
+            Node node = parent.getFirstChild();
+            while (node != null) {
+                Node next = node.getNext();
+                if (node instanceof Block) {
+                    mark(node);
+                }
+                node.accept(this);
+                node = next;
+            }
+        }
+
+        private void mark(Node block) {
+            int offset = LineIndex.startOffset(block);
+            if (offset < 0) return;
+            if (markRows == null) {
+                markRows = new int[8];
+                markOffsets = new int[8];
+            } else if (marks == markRows.length) {
+                markRows = Arrays.copyOf(markRows, marks * 2);
+                markOffsets = Arrays.copyOf(markOffsets, marks * 2);
+            }
+            markRows[marks] = currentX > left ? currentY + 1 : currentY;
+            markOffsets[marks] = offset;
+            marks++;
+        }
+
+        private void resolveMarks() {
+            for (; resolvedMarks < marks; resolvedMarks++) {
+                markRows[resolvedMarks] = currentY;
+            }
+        }
+
+        private void putHeaderSeparator() {
+            int x = left;
+            for (int col = 0; col < currentTableContext.colWidths.length; col++) {
+                put(x++, currentY, new Cell("|", currentStyle.style()));
+                put(x++, currentY, new Cell("-", currentStyle.style()));
+                for (int w = 0; w < currentTableContext.colWidths[col]; w++) {
+                    put(x++, currentY, new Cell("-", currentStyle.style()));
+                }
+                put(x++, currentY, new Cell("-", currentStyle.style()));
+            }
+            put(x, currentY, new Cell("|", currentStyle.style()));
+            currentY++;
+            currentX = left;
+        }
+
         @Override
         public void visit(CustomNode customNode) {
             if (customNode instanceof TableHead) {
                 visitChildren(customNode);
-                if (currentTableContext != null && currentY < area.bottom()) {
-                    int x = area.x();
-                    for (int col = 0; col < currentTableContext.colWidths.length; col++) {
-                        buffer.set(x++, currentY, new Cell("|", currentStyle));
-                        buffer.set(x++, currentY, new Cell("-", currentStyle));
-                        for (int w = 0; w < currentTableContext.colWidths[col]; w++) {
-                            buffer.set(x++, currentY, new Cell("-", currentStyle));
-                        }
-                        buffer.set(x++, currentY, new Cell("-", currentStyle));
-                    }
-                    buffer.set(x, currentY, new Cell("|", currentStyle));
-                    currentY++;
-                    currentX = area.x();
+                if (currentTableContext != null) {
+                    putHeaderSeparator();
                 }
             } else if (customNode instanceof TableBody) {
                 visitChildren(customNode);
@@ -477,16 +2772,16 @@ public class Markdown implements StatefulWidget<Markdown.State> {
                     int maxH = currentTableContext.maxRowHeight;
                     for (int i = 0; i < maxH; i++) {
                         int y = currentTableContext.rowStartY + i;
-                        if (y >= area.bottom()) break;
-                        int x = area.x();
+                        int x = left;
                         for (int col = 0; col < currentTableContext.colWidths.length; col++) {
-                            buffer.set(x, y, new Cell("|", currentStyle));
+                            put(x, y, new Cell("|", currentStyle.style()));
                             x += currentTableContext.colWidths[col] + 3;
                         }
-                        buffer.set(x, y, new Cell("|", currentStyle));
+                        put(x, y, new Cell("|", currentStyle.style()));
                     }
                     currentY = currentTableContext.rowStartY + maxH;
-                    currentX = area.x();
+                    currentX = left;
+                    currentTableContext.endRow();
                 } else {
                     visitChildren(customNode);
                 }
@@ -499,31 +2794,33 @@ public class Markdown implements StatefulWidget<Markdown.State> {
                     int cellX = currentTableContext.colXs[colIdx];
                     int cellWidth = currentTableContext.colWidths[colIdx];
 
-                    Rect prevArea = this.area;
-                    this.area = new Rect(cellX, currentTableContext.rowStartY, cellWidth, prevArea.bottom() - currentTableContext.rowStartY);
+                    int prevLeft = this.left;
+                    int prevRight = this.right;
+                    this.left = cellX;
+                    this.right = cellX + cellWidth;
                     this.currentX = cellX;
                     this.currentY = currentTableContext.rowStartY;
 
-                    Style prev = currentStyle;
+                    StyleTable.Derived prev = currentStyle;
                     if (cell.isHeader()) {
-                        currentStyle = currentStyle.bold();
+                        currentStyle = styles.derive(currentStyle, Theme.Element.TABLE_HEADER);
                     }
 
                     visitChildren(cell);
 
                     currentStyle = prev;
 
-                    int h = this.currentY - currentTableContext.rowStartY + (this.currentX > this.area.x() ? 1 : 0);
+                    int h = this.currentY - currentTableContext.rowStartY + (this.currentX > this.left ? 1 : 0);
                     currentTableContext.updateMaxHeight(h);
 
-                    this.area = prevArea;
+                    this.left = prevLeft;
+                    this.right = prevRight;
                 } else {
                     visitChildren(customNode);
                 }
             } else if (customNode instanceof Strikethrough) {
-                Style prev = currentStyle;
-                // Dim the text to represent strikethrough if no native style modifier exists
-                currentStyle = currentStyle.fg(Color.DARK_GRAY).italic();
+                StyleTable.Derived prev = currentStyle;
+                currentStyle = styles.derive(currentStyle, Theme.Element.STRIKETHROUGH);
                 visitChildren(customNode);
                 currentStyle = prev;
             } else if (customNode instanceof TaskListItemMarker) {
@@ -540,26 +2837,16 @@ public class Markdown implements StatefulWidget<Markdown.State> {
 
         @Override
         public void visit(FencedCodeBlock fencedCodeBlock) {
-            if (currentX > area.x()) {
+            if (currentX > left) {
                 newLine();
             }
-            Style prev = currentStyle;
+            StyleTable.Derived prev = currentStyle;
             if ("math".equals(fencedCodeBlock.getInfo())) {
-                Style mathStyle = currentStyle.fg(Color.YELLOW);
-                Style cmdStyle = currentStyle.fg(Color.GREEN);
-                String literal = fencedCodeBlock.getLiteral();
-                if (literal.endsWith("\n")) {
-                    literal = literal.substring(0, literal.length() - 1);
-                }
-
-                literal = literal.replace("\\\\", "\n").replace("\\ ", "\n");
-
-                String[] lines = literal.split("\n");
-                for (String line : lines) {
-                    String visible = line.replaceAll("\\\\(?:begin|end)\\{[^}]*\\}|\\\\\\\\|&|\\\\left|\\\\right|\\\\quad|\\\\qquad", "").trim();
-                    if (visible.isEmpty()) {
-                        continue;
-                    }
+                StyleTable.Derived mathStyle = styles.derive(currentStyle, Theme.Element.MATH);
+                StyleTable.Derived cmdStyle = styles.derive(currentStyle, Theme.Element.MATH_COMMAND);
+                MathTokens math = mathTokens.computeIfAbsent(fencedCodeBlock,
+                        n -> MathTokens.display(fencedCodeBlock.getLiteral()));
+                for (MathTokens.MathLine line : math.lines()) {
                     currentStyle = mathStyle;
                     printText("  ");
                     printMath(line, mathStyle, cmdStyle);
@@ -567,8 +2854,21 @@ public class Markdown implements StatefulWidget<Markdown.State> {
                 }
                 newLine(); // One extra newline for spacing
             } else {
-                currentStyle = currentStyle.fg(Color.YELLOW).bg(Color.DARK_GRAY);
-                printText(fencedCodeBlock.getLiteral());
+                currentStyle = styles.derive(currentStyle, Theme.Element.CODE_BLOCK);
+                String literal = fencedCodeBlock.getLiteral();
+                Highlighter highlighter = styles.highlighter(fencedCodeBlock.getInfo());
+                int prevRight = unwrap();
+                if (highlighter != null) {
+                    CodeTokens tokens = codeTokens.get(fencedCodeBlock);
+                    if (tokens == null || !tokens.isFrom(highlighter)) {
+                        tokens = CodeTokens.of(highlighter, literal);
+                        codeTokens.put(fencedCodeBlock, tokens);
+                    }
+                    printHighlighted(literal, tokens);
+                } else {
+                    printCode(literal, 0, literal.length());
+                }
+                rewrap(prevRight);
                 newLine();
                 newLine();
             }
@@ -577,11 +2877,11 @@ public class Markdown implements StatefulWidget<Markdown.State> {
 
         @Override
         public void visit(HtmlBlock htmlBlock) {
-            if (currentX > area.x()) {
+            if (currentX > left) {
                 newLine();
             }
-            Style prev = currentStyle;
-            currentStyle = currentStyle.fg(Color.GRAY);
+            StyleTable.Derived prev = currentStyle;
+            currentStyle = styles.derive(currentStyle, Theme.Element.HTML);
             printText(htmlBlock.getLiteral());
             currentStyle = prev;
             newLine();
@@ -590,16 +2890,16 @@ public class Markdown implements StatefulWidget<Markdown.State> {
 
         @Override
         public void visit(HtmlInline htmlInline) {
-            Style prev = currentStyle;
-            currentStyle = currentStyle.fg(Color.GRAY);
+            StyleTable.Derived prev = currentStyle;
+            currentStyle = styles.derive(currentStyle, Theme.Element.HTML);
             printText(htmlInline.getLiteral());
             currentStyle = prev;
         }
 
         @Override
         public void visit(Image image) {
-            Style prev = currentStyle;
-            currentStyle = currentStyle.fg(Color.BLUE).underlined();
+            StyleTable.Derived prev = currentStyle;
+            currentStyle = styles.derive(currentStyle, Theme.Element.IMAGE);
             String altText = image.getTitle() != null ? image.getTitle() : "Image";
             printText("![" + altText + "](" + image.getDestination() + ")");
             currentStyle = prev;
@@ -607,12 +2907,15 @@ public class Markdown implements StatefulWidget<Markdown.State> {
 
         @Override
         public void visit(IndentedCodeBlock indentedCodeBlock) {
-            if (currentX > area.x()) {
+            if (currentX > left) {
                 newLine();
             }
-            Style prev = currentStyle;
-            currentStyle = currentStyle.fg(Color.YELLOW).bg(Color.DARK_GRAY);
-            printText(indentedCodeBlock.getLiteral());
+            StyleTable.Derived prev = currentStyle;
+            currentStyle = styles.derive(currentStyle, Theme.Element.CODE_BLOCK);
+            String literal = indentedCodeBlock.getLiteral();
+            int prevRight = unwrap();
+            printCode(literal, 0, literal.length());
+            rewrap(prevRight);
             currentStyle = prev;
             newLine();
             newLine();
@@ -620,8 +2923,8 @@ public class Markdown implements StatefulWidget<Markdown.State> {
 
         @Override
         public void visit(Link link) {
-            Style prev = currentStyle;
-            currentStyle = currentStyle.fg(Color.BLUE).underlined();
+            StyleTable.Derived prev = currentStyle;
+            currentStyle = styles.derive(currentStyle, Theme.Element.LINK);
             visitChildren(link);
             currentStyle = prev;
         }
@@ -643,7 +2946,7 @@ public class Markdown implements StatefulWidget<Markdown.State> {
 
         @Override
         public void visit(ThematicBreak thematicBreak) {
-            if (currentX > area.x()) {
+            if (currentX > left) {
                 newLine();
             }
             printText("---");
@@ -651,55 +2954,184 @@ public class Markdown implements StatefulWidget<Markdown.State> {
             newLine();
         }
 
-        private void printText(String text) {
-            // Split by whitespace and common punctuation, keeping the delimiters intact
-            String[] words = text.split("(?<=[ \\t\\n\\r,.;:/?!-])|(?=[ \\t\\n\\r,.;:/?!-])");
-            for (String word : words) {
-                if (word.isEmpty()) continue;
+        private void printText(CharSequence text) {
+            printText(text, 0, text.length());
+        }
 
-                if (word.equals("\n")) {
+        // Breaks before and after whitespace and common punctuation, keeping the delimiters as
+        // words of their own, then places each word grapheme by grapheme. Walks the text by
+        // index so that nothing is allocated per word, and only non-ASCII symbols per cell.
+        private void printText(CharSequence text, int start, int end) {
+            Cell[] asciiCells = asciiCells(currentStyle.style());
+            int i = start;
+            while (i < end) {
+                char c = text.charAt(i);
+                if (c == '\n') {
                     newLine();
+                    i++;
                     continue;
                 }
-                if (word.equals("\r")) {
+                if (c == '\r') {
+                    i++;
                     continue;
                 }
+                int wordEnd = i + 1;
+                if (!isBreak(c)) {
+                    while (wordEnd < end && !isBreak(text.charAt(wordEnd))) {
+                        wordEnd++;
+                    }
+                }
 
-                int width = CharWidth.of(word);
+                int width = Graphemes.measure(text, i, wordEnd);
 
                 // If it doesn't fit on the current line
-                if (currentX + width > area.right()) {
+                if (currentX + width > right) {
                     // Try to wrap. If the word is huge, at least start it on a fresh line
                     // *unless* we are already at the beginning of a line.
-                    if (currentX > area.x()) {
+                    if (currentX > left) {
                         newLine();
                     }
                 }
+                if (resolvedMarks < marks) {
+                    resolveMarks();
+                }
+
+                for (int g = i; g < wordEnd; ) {
+                    int next = Graphemes.next(text, g, wordEnd);
+                    int charW = Graphemes.width(text, g, next);
+                    if (charW > 0) {
+                        if (currentX + charW > right) {
+                            newLine();
+                        }
+                        if (recording) {
+                            char first = text.charAt(g);
+                            Cell cell;
+                            if (next == g + 1 && first < 128) {
+                                cell = asciiCells[first];
+                                if (cell == null) {
+                                    cell = new Cell(Graphemes.symbol(text, g, next), currentStyle.style());
+                                    asciiCells[first] = cell;
+                                }
+                            } else {
+                                cell = new Cell(Graphemes.symbol(text, g, next), currentStyle.style());
+                            }
+                            put(currentX, currentY, cell);
+                        }
+                        currentX += charW;
+                    }
+                    g = next;
+                }
+                i = wordEnd;
+            }
+            totalHeight = Math.max(totalHeight, currentY + 1);
+        }
 
-                int col = currentX;
-                for (char c : word.toCharArray()) {
-                    String s = String.valueOf(c);
-                    int charW = CharWidth.of(s);
+        // With horizontal scrolling, lets the code that follows run past the right edge and pan.
+        // Returns the right edge to restore with rewrap.
+        private int unwrap() {
+            int prevRight = right;
+            if (styles.unwrapped()) {
+                right = Integer.MAX_VALUE;
+                panning = true;
+            }
+            return prevRight;
+        }
+
+        private void rewrap(int prevRight) {
+            if (panning) {
+                scrollWidth = Math.max(scrollWidth, currentX);
+                panning = false;
+            }
+            right = prevRight;
+        }
+
+        // Prints code in the current style, with its tokens in theirs.
+        private void printHighlighted(String literal, CodeTokens tokens) {
+            StyleTable.Derived codeStyle = currentStyle;
+            int printed = 0;
+            for (int t = 0; t < tokens.count(); t++) {
+                printCode(literal, printed, tokens.start(t));
+                currentStyle = styles.derive(codeStyle, tokens.element(t));
+                printCode(literal, tokens.start(t), tokens.end(t));
+                currentStyle = codeStyle;
+                printed = tokens.end(t);
+            }
+            printCode(literal, printed, literal.length());
+        }
 
-                    if (currentX + charW > area.right()) {
+        // Code keeps its own line breaks and spacing, and is only cut where a line is full, so
+        // it is placed grapheme by grapheme without looking for words. An ASCII char not
+        // followed by a combining mark or joiner is a grapheme of its own and one cell wide.
+        private void printCode(CharSequence text, int start, int end) {
+            Cell[] asciiCells = asciiCells(currentStyle.style());
+            int i = start;
+            while (i < end) {
+                char c = text.charAt(i);
+                if (c == '\n') {
+                    if (panning) scrollWidth = Math.max(scrollWidth, currentX);
+                    newLine();
+                    i++;
+                    continue;
+                }
+                if (c == '\r') {
+                    i++;
+                    continue;
+                }
+                int next;
+                int charW;
+                if (c >= 0x20 && c < 0x7F && (i + 1 == end || text.charAt(i + 1) < 0x300)) {
+                    next = i + 1;
+                    charW = 1;
+                } else {
+                    next = Graphemes.next(text, i, end);
+                    charW = Graphemes.width(text, i, next);
+                }
+                if (charW > 0) {
+                    if (currentX + charW > right && currentX > left) {
                         newLine();
-                        col = currentX;
                     }
-
-                    if (currentY >= area.y() && currentY < area.bottom()) {
-                        buffer.set(col, currentY, new Cell(s, currentStyle));
+                    if (resolvedMarks < marks) {
+                        resolveMarks();
+                    }
+                    if (recording) {
+                        Cell cell;
+                        if (next == i + 1 && c < 128) {
+                            cell = asciiCells[c];
+                            if (cell == null) {
+                                cell = new Cell(Graphemes.symbol(text, i, next), currentStyle.style());
+                                asciiCells[c] = cell;
+                            }
+                        } else {
+                            cell = new Cell(Graphemes.symbol(text, i, next), currentStyle.style());
+                        }
+                        put(currentX, currentY, cell);
                     }
-                    col += charW;
                     currentX += charW;
                 }
+                i = next;
+            }
+            totalHeight = Math.max(totalHeight, currentY + 1);
+        }
+
+        private static boolean isBreak(char c) {
+            switch (c) {
+                case ' ': case '\t': case '\n': case '\r':
+                case ',': case '.': case ';': case ':': case '/': case '?': case '!': case '-':
+                    return true;
+                default:
+                    return false;
             }
-            totalHeight = Math.max(totalHeight, currentY + state.scrollY() - area.y() + 1);
+        }
+
+        // Cells are immutable, so one per ASCII character and style is shared by the widget.
+        private Cell[] asciiCells(Style style) {
+            return styles.asciiCells(style);
         }
 
         private void newLine() {
-            currentX = area.x();
+            currentX = left;
             currentY++;
-            totalHeight = Math.max(totalHeight, currentY + state.scrollY() - area.y() + 1);
+            totalHeight = Math.max(totalHeight, currentY + 1);
         }
     }
 }
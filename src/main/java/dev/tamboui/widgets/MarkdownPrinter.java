@@ -0,0 +1,204 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.style.Style;
+
+import java.io.BufferedWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Renders Markdown files to text from the command line, for build steps that turn many
+ * documents into terminal output:
+ *
+ * <pre>
+ * MarkdownPrinter [--width N] [--plain] [--jobs N] [--out DIR] FILE...
+ * </pre>
+ *
+ * Files are rendered concurrently, each on a virtual thread, by one shared widget. With
+ * {@code --out}, each is written to {@code DIR/<name>.ans}, or {@code .txt} with
+ * {@code --plain}, and inputs whose names collide fail; otherwise they are written to standard
+ * output in the order given, each one as it is printed. {@code --jobs} bounds how many files
+ * are read and held at once.
+ */
+public final class MarkdownPrinter {
+
+    private final Markdown widget;
+    private final int width;
+    private final boolean ansi;
+
+    public MarkdownPrinter(Markdown widget, int width, boolean ansi) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("width must be positive: " + width);
+        }
+        this.widget = widget;
+        this.width = width;
+        this.ansi = ansi;
+    }
+
+    /** Renders one document to {@code out}. */
+    public void print(String markdown, Appendable out) throws IOException {
+        widget.print(new Markdown.State(markdown), width, out, ansi);
+    }
+
+    /** Renders a UTF-8 file to {@code out}. */
+    public void print(Path file, Appendable out) throws IOException {
+        print(Files.readString(file, StandardCharsets.UTF_8), out);
+    }
+
+    /**
+     * Renders each file to a file of the same name in {@code dir}, at most {@code jobs} at a
+     * time, and returns the files that failed with their error, in the order given. Files whose
+     * output names would collide, such as two {@code README.md} from different directories,
+     * all fail without being written.
+     */
+    public List<String> printAll(List<Path> files, Path dir, int jobs) throws InterruptedException {
+        Map<String, List<Path>> byName = new HashMap<>();
+        for (Path file : files) {
+            byName.computeIfAbsent(outputName(file), name -> new ArrayList<>()).add(file);
+        }
+        Semaphore permits = new Semaphore(jobs);
+        List<Future<?>> futures = new ArrayList<>(files.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Path file : files) {
+                String name = outputName(file);
+                List<Path> sharing = byName.get(name);
+                futures.add(executor.submit(() -> {
+                    if (sharing.size() > 1) {
+                        throw new IOException("output " + name + " would be written for each of " + sharing);
+                    }
+                    permits.acquire();
+                    try (Writer out = Files.newBufferedWriter(dir.resolve(name), StandardCharsets.UTF_8)) {
+                        print(file, out);
+                    } finally {
+                        permits.release();
+                    }
+                    return null;
+                }));
+            }
+        }
+        List<String> failures = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                failures.add(files.get(i) + ": " + e.getCause());
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Lays out the files concurrently, at most {@code jobs} ahead of the one being written, and
+     * prints them straight to {@code out} one after another in the order given, flushing it
+     * after each one if it is {@link Flushable}. Returns the files that failed.
+     */
+    public List<String> printAll(List<Path> files, Appendable out, int jobs) throws InterruptedException, IOException {
+        List<Future<Markdown.State>> futures = new ArrayList<>(files.size());
+        List<String> failures = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            // A window of jobs files, in the order given: the next one is only submitted once
+            // the first in the window is written, so the one the writer waits for always runs.
+            for (int i = 0; i < Math.min(jobs, files.size()); i++) {
+                futures.add(executor.submit(layOut(files.get(i))));
+            }
+            for (int i = 0; i < files.size(); i++) {
+                Markdown.State state;
+                try {
+                    state = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    failures.add(files.get(i) + ": " + e.getCause());
+                    state = null;
+                }
+                futures.set(i, null);
+                if (state != null) {
+                    try {
+                        widget.print(state, width, out, ansi);
+                        if (out instanceof Flushable flushable) flushable.flush();
+                    } catch (IOException e) {
+                        executor.shutdownNow();
+                        throw e;
+                    }
+                }
+                if (i + jobs < files.size()) {
+                    futures.add(executor.submit(layOut(files.get(i + jobs))));
+                }
+            }
+        }
+        return failures;
+    }
+
+    private Callable<Markdown.State> layOut(Path file) {
+        return () -> {
+            Markdown.State state = new Markdown.State(Files.readString(file, StandardCharsets.UTF_8));
+            if (!state.isEmpty()) widget.layoutNow(state, width);
+            return state;
+        };
+    }
+
+    private String outputName(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + (ansi ? ".ans" : ".txt");
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    static int run(String[] args, PrintStream stdout, PrintStream stderr) throws InterruptedException, IOException {
+        int width = 80;
+        boolean ansi = true;
+        int jobs = Runtime.getRuntime().availableProcessors() * 2;
+        Path dir = null;
+        List<Path> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--width" -> width = Integer.parseInt(args[++i]);
+                    case "--plain" -> ansi = false;
+                    case "--jobs" -> jobs = Integer.parseInt(args[++i]);
+                    case "--out" -> dir = Path.of(args[++i]);
+                    default -> {
+                        if (args[i].startsWith("--")) throw new IllegalArgumentException("unknown option " + args[i]);
+                        files.add(Path.of(args[i]));
+                    }
+                }
+            }
+            if (files.isEmpty()) throw new IllegalArgumentException("no files");
+            if (width <= 0 || jobs <= 0) throw new IllegalArgumentException("--width and --jobs must be positive");
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            stderr.println("error: " + (e instanceof ArrayIndexOutOfBoundsException ? "missing option value" : e.getMessage()));
+            stderr.println("usage: MarkdownPrinter [--width N] [--plain] [--jobs N] [--out DIR] FILE...");
+            return 2;
+        }
+
+        MarkdownPrinter printer = new MarkdownPrinter(new Markdown(Style.EMPTY), width, ansi);
+        List<String> failures;
+        if (dir != null) {
+            Files.createDirectories(dir);
+            failures = printer.printAll(files, dir, jobs);
+        } else {
+            Writer out = new BufferedWriter(new OutputStreamWriter(stdout, StandardCharsets.UTF_8));
+            failures = printer.printAll(files, out, jobs);
+            out.flush();
+        }
+        failures.forEach(stderr::println);
+        return failures.isEmpty() ? 0 : 1;
+    }
+}
@@ -0,0 +1,175 @@
+package dev.tamboui.widgets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A math literal split once, when its node is first laid out, into what the layout prints:
+ * runs of text and of command names, in the order printed. Markup that is not shown, such as
+ * environments, alignment marks and spacing commands, is left out, as are the backslashes of
+ * commands and escapes. Display math is split into its visible lines first.
+ */
+final class MathTokens {
+
+    /** One printed run: {@code text[start, end)}, styled as a command or as plain math. */
+    record Segment(int start, int end, boolean command) {
+    }
+
+    /** One line of math and its runs. */
+    record MathLine(String text, Segment[] segments) {
+    }
+
+    private final MathLine[] lines;
+
+    private MathTokens(MathLine[] lines) {
+        this.lines = lines;
+    }
+
+    MathLine[] lines() {
+        return lines;
+    }
+
+    /** Inline math, without its {@code $} delimiters, as a single line. */
+    static MathTokens inline(String math) {
+        return new MathTokens(new MathLine[]{line(math)});
+    }
+
+    /**
+     * The body of a {@code math} code block. Lines end at newlines, {@code \\} and
+     * {@code \ }; lines with nothing visible are dropped.
+     */
+    static MathTokens display(String literal) {
+        if (literal.endsWith("\n")) {
+            literal = literal.substring(0, literal.length() - 1);
+        }
+        List<MathLine> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= literal.length(); i++) {
+            int breakLength = lineBreak(literal, i);
+            if (breakLength > 0) {
+                if (isVisible(literal, start, i)) {
+                    lines.add(line(literal.substring(start, i)));
+                }
+                start = i + breakLength;
+                i = start - 1;
+            }
+        }
+        return new MathTokens(lines.toArray(new MathLine[0]));
+    }
+
+    // Length of the line break at i, counting the end of the text as one, or 0.
+    private static int lineBreak(String text, int i) {
+        if (i == text.length()) return 1;
+        char c = text.charAt(i);
+        if (c == '\n') return 1;
+        if (c == '\\' && i + 1 < text.length() && (text.charAt(i + 1) == '\\' || text.charAt(i + 1) == ' ')) return 2;
+        return 0;
+    }
+
+    // Whether anything but blanks is left once environments, alignment marks, \left, \right,
+    // \quad and \qquad are taken out.
+    private static boolean isVisible(String text, int from, int to) {
+        int i = from;
+        while (i < to) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                i++;
+            } else if (c == '\\') {
+                int end = environmentEnd(text, i, to);
+                if (end < 0 && i + 1 < to && text.charAt(i + 1) == '\\') end = i + 2;
+                if (end < 0) end = prefixEnd(text, i + 1, to, "left", "right", "quad", "qquad");
+                if (end < 0) return true;
+                i = end;
+            } else if (c > ' ') {
+                return true;
+            } else {
+                i++;
+            }
+        }
+        return false;
+    }
+
+    // Splits a line at \begin{...}, \end{...}, \\, commands, escapes and &, keeping the runs
+    // in between as plain math.
+    private static MathLine line(String text) {
+        List<Segment> segments = new ArrayList<>();
+        int length = text.length();
+        int lastEnd = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            int end;
+            if (c == '&') {
+                end = i + 1;
+            } else if (c == '\\') {
+                end = environmentEnd(text, i, length);
+                if (end < 0 && i + 1 < length) {
+                    char next = text.charAt(i + 1);
+                    if (next == '\\') {
+                        end = i + 2;
+                    } else if (isLetter(next)) {
+                        end = i + 2;
+                        while (end < length && isLetter(text.charAt(end))) end++;
+                    } else if (!isLineTerminator(next)) {
+                        end = i + 1 + Character.charCount(text.codePointAt(i + 1));
+                    }
+                }
+                if (end < 0) continue;
+            } else {
+                continue;
+            }
+            if (i > lastEnd) {
+                segments.add(new Segment(lastEnd, i, false));
+            }
+            if (!isHidden(text, i, end)) {
+                segments.add(new Segment(i + 1, end, isLetter(text.charAt(i + 1)) && c == '\\'));
+            }
+            lastEnd = end;
+            i = end - 1;
+        }
+        if (lastEnd < length) {
+            segments.add(new Segment(lastEnd, length, false));
+        }
+        return new MathLine(text, segments.toArray(new Segment[0]));
+    }
+
+    // Tokens that print nothing: environments, line breaks, alignment marks and the spacing
+    // and delimiter sizing commands. Like \begin itself, commands that start with "begin" or
+    // "end" are hidden.
+    private static boolean isHidden(String text, int start, int end) {
+        if (text.charAt(start) == '&' || end - start == 2 && text.charAt(start + 1) == '\\') {
+            return true;
+        }
+        return end - start > 5 && text.startsWith("begin", start + 1) || end - start > 3 && text.startsWith("end", start + 1)
+                || isWord(text, start + 1, end, "left") || isWord(text, start + 1, end, "right")
+                || isWord(text, start + 1, end, "quad") || isWord(text, start + 1, end, "qquad");
+    }
+
+    // End of \begin{...} or \end{...} at i, or -1.
+    private static int environmentEnd(String text, int i, int to) {
+        int brace = text.startsWith("begin{", i + 1) ? i + 6 : text.startsWith("end{", i + 1) ? i + 4 : -1;
+        if (brace < 0 || brace >= to) return -1;
+        int close = text.indexOf('}', brace + 1);
+        return close >= 0 && close < to ? close + 1 : -1;
+    }
+
+    // End of the first of the names that text[i, to) starts with, or -1.
+    private static int prefixEnd(String text, int i, int to, String... names) {
+        for (String name : names) {
+            if (i + name.length() <= to && text.startsWith(name, i)) return i + name.length();
+        }
+        return -1;
+    }
+
+    private static boolean isWord(String text, int start, int end, String word) {
+        return end - start == word.length() && text.startsWith(word, start);
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    // What '.' does not match in a regular expression without DOTALL.
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+}
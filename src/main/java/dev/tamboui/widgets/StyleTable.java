@@ -0,0 +1,138 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.buffer.Cell;
+import dev.tamboui.style.Style;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-widget cache of the styles the layout pass derives from the base style through the theme.
+ * Each (parent style, element) pair is computed once, so visiting a node costs a lookup instead
+ * of building new {@link Style} objects on every frame.
+ * <p>
+ * The layout pass derives through {@link Derived} paths, which keep the elements a style came
+ * from, so that laid out lines can be saved by element and restored under another theme even
+ * where two elements have equal styles.
+ * <p>
+ * Also holds one cell per ASCII character and style, shared by all layouts of the widget.
+ * Entries are filled lazily; racing threads compute equal values, so that is harmless. The
+ * widget's code highlighters are looked up here too, by language, as is whether code blocks
+ * and tables are left unwrapped for horizontal scrolling.
+ */
+final class StyleTable {
+
+    private static final Markdown.Theme.Element[] ELEMENTS = Markdown.Theme.Element.values();
+
+    private final Style base;
+    private final Markdown.Theme theme;
+    private final Map<String, Markdown.Highlighter> highlighters;
+    private final boolean unwrapped;
+    private final ConcurrentHashMap<Style, Entry> entries = new ConcurrentHashMap<>();
+    private final Derived root;
+
+    private static final class Entry {
+        final Style[] derived = new Style[ELEMENTS.length];
+        final Cell[] asciiCells = new Cell[128];
+    }
+
+    /**
+     * A style and the theme elements it was derived through from the base style, the root.
+     * Children are created once per element; racing threads may create equal ones.
+     */
+    static final class Derived {
+        private final Style style;
+        private final Derived parent;
+        private final Markdown.Theme.Element element;
+        private final Derived[] children = new Derived[ELEMENTS.length];
+
+        private Derived(Style style, Derived parent, Markdown.Theme.Element element) {
+            this.style = style;
+            this.parent = parent;
+            this.element = element;
+        }
+
+        Style style() {
+            return style;
+        }
+
+        /** The path this one was derived from, or null for the root. */
+        Derived parent() {
+            return parent;
+        }
+
+        /** The element this one was derived through, or null for the root. */
+        Markdown.Theme.Element element() {
+            return element;
+        }
+    }
+
+    StyleTable(Style base, Markdown.Theme theme) {
+        this(base, theme, Map.of(), false);
+    }
+
+    StyleTable(Style base, Markdown.Theme theme, Map<String, Markdown.Highlighter> highlighters, boolean unwrapped) {
+        this.base = base;
+        this.theme = theme;
+        this.highlighters = Map.copyOf(highlighters);
+        this.unwrapped = unwrapped;
+        this.root = new Derived(base, null, null);
+    }
+
+    Style base() {
+        return base;
+    }
+
+    Markdown.Theme theme() {
+        return theme;
+    }
+
+    Style derive(Style parent, Markdown.Theme.Element element) {
+        Style[] derived = entry(parent).derived;
+        Style style = derived[element.ordinal()];
+        if (style == null) {
+            style = theme.apply(element, parent);
+            derived[element.ordinal()] = style;
+        }
+        return style;
+    }
+
+    /** The base style, as the root of the derivation paths. */
+    Derived root() {
+        return root;
+    }
+
+    Derived derive(Derived parent, Markdown.Theme.Element element) {
+        Derived child = parent.children[element.ordinal()];
+        if (child == null) {
+            child = new Derived(derive(parent.style, element), parent, element);
+            parent.children[element.ordinal()] = child;
+        }
+        return child;
+    }
+
+    /** The highlighter for the language a code block's info string starts with, or null. */
+    Markdown.Highlighter highlighter(String info) {
+        if (info == null || highlighters.isEmpty()) {
+            return null;
+        }
+        int start = 0;
+        while (start < info.length() && Character.isWhitespace(info.charAt(start))) start++;
+        int end = start;
+        while (end < info.length() && !Character.isWhitespace(info.charAt(end)) && info.charAt(end) != '{') end++;
+        return end > start ? highlighters.get(info.substring(start, end).toLowerCase(Locale.ROOT)) : null;
+    }
+
+    boolean unwrapped() {
+        return unwrapped;
+    }
+
+    Cell[] asciiCells(Style style) {
+        return entry(style).asciiCells;
+    }
+
+    private Entry entry(Style style) {
+        return entries.computeIfAbsent(style, k -> new Entry());
+    }
+}
@@ -0,0 +1,127 @@
+package dev.tamboui.widgets;
+
+import org.commonmark.ext.gfm.tables.TableBlock;
+import org.commonmark.ext.gfm.tables.TableCell;
+import org.commonmark.node.Code;
+import org.commonmark.node.HtmlInline;
+import org.commonmark.node.Image;
+import org.commonmark.node.Node;
+import org.commonmark.node.SoftLineBreak;
+import org.commonmark.node.Text;
+
+import java.util.Arrays;
+
+/**
+ * What the layout of one table node needs to know about its cells: the widest cell of each
+ * column, measured once per node whatever the width, and the row heights for the column widths
+ * the table was last laid out at. With both known, measuring the table again costs nothing.
+ */
+final class TableMeasure {
+
+    private final int[] intrinsicWidths;
+
+    // Volatile and replaced as a whole: a background layout and the rendering thread may both
+    // lay out the same table.
+    private volatile Heights heights;
+
+    /** Row heights, header first, at the given column widths; the total includes the header separator. */
+    record Heights(int[] colWidths, int[] rowHeights, int height) {
+    }
+
+    private TableMeasure(int[] intrinsicWidths) {
+        this.intrinsicWidths = intrinsicWidths;
+    }
+
+    /** Measures the cells of {@code table} in a single walk; cells past {@code columns} are ignored. */
+    static TableMeasure of(TableBlock table, int columns) {
+        int[] widths = new int[columns];
+        for (Node section = table.getFirstChild(); section != null; section = section.getNext()) {
+            for (Node row = section.getFirstChild(); row != null; row = row.getNext()) {
+                int col = 0;
+                for (Node cell = row.getFirstChild(); cell != null && col < columns; cell = cell.getNext()) {
+                    if (cell instanceof TableCell) {
+                        widths[col] = Math.max(widths[col], width(cell));
+                        col++;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < columns; i++) {
+            if (widths[i] == 0) widths[i] = 1;
+        }
+        return new TableMeasure(widths);
+    }
+
+    int[] intrinsicWidths() {
+        return intrinsicWidths;
+    }
+
+    /** The row heights at {@code colWidths}, or {@code null} if the table was not laid out at them. */
+    Heights heights(int[] colWidths) {
+        Heights heights = this.heights;
+        return heights != null && Arrays.equals(heights.colWidths(), colWidths) ? heights : null;
+    }
+
+    void setHeights(int[] colWidths, int[] rowHeights, int height) {
+        this.heights = new Heights(colWidths.clone(), rowHeights, height);
+    }
+
+    /**
+     * Column widths for {@code availableWidth} cells, borders included. Columns that fit keep
+     * their intrinsic width; the rest share what is left, narrowest first.
+     */
+    int[] columnWidths(int availableWidth) {
+        int numCols = intrinsicWidths.length;
+        int totalBorders = 3 * numCols + 1;
+        int maxAvailableForContents = Math.max(numCols, availableWidth - totalBorders);
+        int totalContents = 0;
+        for (int w : intrinsicWidths) totalContents += w;
+        if (totalContents <= maxAvailableForContents) {
+            return intrinsicWidths.clone();
+        }
+
+        // Fair share allocation, by ascending intrinsic width then column index
+        long[] order = new long[numCols];
+        for (int i = 0; i < numCols; i++) {
+            order[i] = (long) intrinsicWidths[i] << 32 | i;
+        }
+        Arrays.sort(order);
+
+        int[] actualWidths = new int[numCols];
+        int remainingToDistribute = maxAvailableForContents;
+        int remainingCols = numCols;
+        for (long entry : order) {
+            int col = (int) entry;
+            int fairShare = remainingToDistribute / remainingCols;
+            actualWidths[col] = Math.min(intrinsicWidths[col], fairShare);
+            remainingToDistribute -= actualWidths[col];
+            remainingCols--;
+        }
+        return actualWidths;
+    }
+
+    // Display width of a cell's text on one line, counting what the layout prints for each node.
+    private static int width(Node node) {
+        if (node instanceof Text text) {
+            return width(text.getLiteral());
+        } else if (node instanceof Code code) {
+            return width(code.getLiteral());
+        } else if (node instanceof HtmlInline html) {
+            return width(html.getLiteral());
+        } else if (node instanceof SoftLineBreak) {
+            return 1;
+        } else if (node instanceof Image image) {
+            String altText = image.getTitle() != null ? image.getTitle() : "Image";
+            return 5 + width(altText) + width(image.getDestination());
+        }
+        int width = 0;
+        for (Node child = node.getFirstChild(); child != null; child = child.getNext()) {
+            width += width(child);
+        }
+        return width;
+    }
+
+    private static int width(CharSequence text) {
+        return Graphemes.measure(text, 0, text.length());
+    }
+}
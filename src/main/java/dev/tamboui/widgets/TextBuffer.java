@@ -0,0 +1,79 @@
+package dev.tamboui.widgets;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The text of a state, appended to in place. Chars are only ever written past the current
+ * length, and growing moves them to a new array, so a {@link #view} taken on the rendering
+ * thread stays the same while more text is appended, and can be handed to a background layout
+ * without copying the text.
+ */
+final class TextBuffer implements CharSequence {
+
+    private char[] chars;
+    private int length;
+
+    TextBuffer(CharSequence text) {
+        chars = new char[Math.max(16, text.length())];
+        append(text);
+    }
+
+    void append(CharSequence text) {
+        int n = text.length();
+        if (length + n > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(length + n, chars.length * 2));
+        }
+        if (text instanceof String s) {
+            s.getChars(0, n, chars, length);
+        } else {
+            for (int i = 0; i < n; i++) chars[length + i] = text.charAt(i);
+        }
+        length += n;
+    }
+
+    /** The text as it is now, unaffected by later appends. */
+    CharSequence view() {
+        return new View(chars, 0, length);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return chars[Objects.checkIndex(index, length)];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        Objects.checkFromToIndex(start, end, length);
+        return new String(chars, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+
+    private record View(char[] array, int offset, int length) implements CharSequence {
+
+        @Override
+        public char charAt(int index) {
+            return array[offset + Objects.checkIndex(index, length)];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            Objects.checkFromToIndex(start, end, length);
+            return new View(array, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(array, offset, length);
+        }
+    }
+}
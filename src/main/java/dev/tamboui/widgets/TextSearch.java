@@ -0,0 +1,300 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.buffer.Cell;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A search over the rendered text of a layout, for {@link Markdown.State#find}. Each top-level
+ * block's rows are turned into text once, case-folded, and kept on the block, so they survive
+ * evictions and are shared by the next layout, which reuses the blocks whose source did not
+ * change. Matches are kept per block too: after an append only the new trailing blocks are
+ * laid out for the search and scanned. Matching is case-insensitive and does not span rows.
+ */
+final class TextSearch {
+
+    /** The folded text of a block's rows, each followed by a line break, and where each row starts. */
+    record BlockText(String text, int[] rowStarts, boolean[] pans) {
+    }
+
+    private static final int[] NONE = new int[0];
+
+    private final String query;
+    private Markdown.Layout layout;
+    // The blocks of the current layout and the offsets of the matches in each one's text. A
+    // later layout shares a prefix of the blocks after an append, at the same indices.
+    private Markdown.BlockLayout[] searched = new Markdown.BlockLayout[0];
+    private int[][] blockMatches = new int[0][];
+
+    // Matches in row order.
+    private int count;
+    private int[] rows = new int[0];
+    private int[] cols = new int[0];
+    private int[] widths = new int[0];
+    private Markdown.BlockLayout[] blocks = new Markdown.BlockLayout[0];
+    private int[] offsets = new int[0];
+    private int current = -1;
+
+    // Copies of painted lines with their matches highlighted, by line; valid for the current match.
+    private final Map<Markdown.Line, Markdown.Line> highlighted = new IdentityHashMap<>();
+
+    TextSearch(String query) {
+        this.query = fold(query);
+    }
+
+    Markdown.Layout layout() {
+        return layout;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int current() {
+        return current;
+    }
+
+    int row(int match) {
+        return rows[match];
+    }
+
+    int col(int match) {
+        return cols[match];
+    }
+
+    int width(int match) {
+        return widths[match];
+    }
+
+    /**
+     * Finds the matches in {@code layout}, reusing what is known for blocks of the last one.
+     * The current match stays on the same text if its block is still there.
+     */
+    void update(Markdown.Layout layout, StyleTable styles) {
+        if (layout == this.layout) {
+            return;
+        }
+        Markdown.BlockLayout currentBlock = current >= 0 ? blocks[current] : null;
+        int currentOffset = current >= 0 ? offsets[current] : 0;
+        int currentRow = current >= 0 ? rows[current] : 0;
+
+        Markdown.BlockLayout[] previous = searched;
+        int[][] previousMatches = blockMatches;
+        searched = new Markdown.BlockLayout[layout.blockCount()];
+        blockMatches = new int[layout.blockCount()][];
+        count = 0;
+        current = -1;
+        highlighted.clear();
+        for (int i = 0; i < layout.blockCount(); i++) {
+            Markdown.BlockLayout block = layout.block(i);
+            int[] found = i < previous.length && previous[i] == block ? previousMatches[i] : null;
+            BlockText text = null;
+            if (found == null) {
+                text = text(layout, i, styles);
+                found = scan(text.text());
+            }
+            searched[i] = block;
+            blockMatches[i] = found;
+            if (found.length == 0) {
+                continue;
+            }
+            if (text == null) {
+                text = text(layout, i, styles);
+            }
+            for (int offset : found) {
+                int r = LineIndex.lastAtOrBelow(text.rowStarts(), text.rowStarts().length, offset);
+                int rowStart = text.rowStarts()[r];
+                if (block == currentBlock && offset == currentOffset) {
+                    current = count;
+                }
+                add(block, offset, layout.top(i) + r,
+                        Graphemes.measure(text.text(), rowStart, offset),
+                        Graphemes.measure(text.text(), offset, offset + query.length()));
+            }
+        }
+        if (current < 0 && currentBlock != null && count > 0) {
+            current = atOrAfter(currentRow);
+        }
+        this.layout = layout;
+    }
+
+    private void add(Markdown.BlockLayout block, int offset, int row, int col, int width) {
+        if (count == rows.length) {
+            int capacity = Math.max(16, count * 2);
+            rows = Arrays.copyOf(rows, capacity);
+            cols = Arrays.copyOf(cols, capacity);
+            widths = Arrays.copyOf(widths, capacity);
+            blocks = Arrays.copyOf(blocks, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+        }
+        rows[count] = row;
+        cols[count] = col;
+        widths[count] = width;
+        blocks[count] = block;
+        offsets[count] = offset;
+        count++;
+    }
+
+    private int[] scan(String text) {
+        int[] found = NONE;
+        int n = 0;
+        for (int i = text.indexOf(query); i >= 0; i = text.indexOf(query, i + query.length())) {
+            if (n == found.length) found = Arrays.copyOf(found, Math.max(4, n * 2));
+            found[n++] = i;
+        }
+        return n == found.length ? found : Arrays.copyOf(found, n);
+    }
+
+    /** Index of the first match on or below {@code row}, wrapping around to the first one. */
+    int atOrAfter(int row) {
+        int i = LineIndex.lastAtOrBelow(rows, count, row - 1) + 1;
+        return i < count ? i : 0;
+    }
+
+    /** Index of the last match above {@code row}, wrapping around to the last one. */
+    int before(int row) {
+        int i = LineIndex.lastAtOrBelow(rows, count, row - 1);
+        return i >= 0 ? i : count - 1;
+    }
+
+    void setCurrent(int match) {
+        if (match != current) {
+            current = match;
+            highlighted.clear();
+        }
+    }
+
+    /**
+     * Whether the row of a match pans with the horizontal scroll, so that scrolling sideways
+     * brings it into view.
+     */
+    boolean pans(int match) {
+        BlockText text = blocks[match].searchText;
+        int r = LineIndex.lastAtOrBelow(text.rowStarts(), text.rowStarts().length, offsets[match]);
+        return text.pans()[r];
+    }
+
+    /**
+     * Replaces the rows in view that hold matches with copies whose matched cells are styled
+     * with the theme's search elements. Copies are kept until the current match changes, so a
+     * frame that shows the same matches paints the same lines.
+     */
+    void highlight(Markdown.Line[] view, int scrollY, StyleTable styles) {
+        if (count == 0) {
+            return;
+        }
+        if (highlighted.size() > 4 * view.length + 64) {
+            highlighted.clear();
+        }
+        int first = atOrAfter(scrollY);
+        if (rows[first] < scrollY) {
+            return;
+        }
+        for (int m = first; m < count && rows[m] < scrollY + view.length; ) {
+            int row = rows[m];
+            int end = m;
+            while (end < count && rows[end] == row) end++;
+            Markdown.Line line = view[row - scrollY];
+            if (line != null) {
+                int from = m;
+                int to = end;
+                view[row - scrollY] = highlighted.computeIfAbsent(line, l -> highlight(l, from, to, styles));
+            }
+            m = end;
+        }
+    }
+
+    private Markdown.Line highlight(Markdown.Line line, int from, int to, StyleTable styles) {
+        Markdown.Line copy = new Markdown.Line();
+        copy.pans = line.pans;
+        for (int c = 0; c < line.size(); c++) {
+            Cell cell = line.cell(c);
+            StyleTable.Derived derived = line.derived(c);
+            int col = line.col(c);
+            for (int m = from; m < to; m++) {
+                if (col >= cols[m] && col < cols[m] + widths[m]) {
+                    Markdown.Theme.Element element = m == current
+                            ? Markdown.Theme.Element.SEARCH_CURRENT : Markdown.Theme.Element.SEARCH_MATCH;
+                    derived = styles.derive(derived, element);
+                    cell = new Cell(cell.symbol(), derived.style());
+                    break;
+                }
+            }
+            copy.add(col, cell, derived);
+        }
+        copy.trim();
+        return copy;
+    }
+
+    /** The folded text of block {@code i}, extracted from its rows the first time it is needed. */
+    static BlockText text(Markdown.Layout layout, int i, StyleTable styles) {
+        Markdown.BlockLayout block = layout.block(i);
+        BlockText text = block.searchText;
+        if (text == null) {
+            text = extract(layout.allLines(i, styles));
+            block.searchText = text;
+        }
+        return text;
+    }
+
+    private static BlockText extract(List<Markdown.Line> lines) {
+        StringBuilder sb = new StringBuilder();
+        int[] rowStarts = new int[lines.size()];
+        boolean[] pans = new boolean[lines.size()];
+        for (int r = 0; r < lines.size(); r++) {
+            rowStarts[r] = sb.length();
+            Markdown.Line line = lines.get(r);
+            if (line != null) {
+                appendRow(line, sb);
+                pans[r] = line.pans;
+            }
+            sb.append('\n');
+        }
+        return new BlockText(sb.toString(), rowStarts, pans);
+    }
+
+    // Writes the cells of a row in column order, with a space for each column left blank, so
+    // that the width of the text before a match is its column.
+    private static void appendRow(Markdown.Line line, StringBuilder sb) {
+        int size = line.size();
+        Integer[] order = null;
+        for (int c = 1; c < size && order == null; c++) {
+            if (line.col(c) < line.col(c - 1)) {
+                order = new Integer[size];
+                for (int k = 0; k < size; k++) order[k] = k;
+                Arrays.sort(order, (a, b) -> Integer.compare(line.col(a), line.col(b)));
+            }
+        }
+        int x = 0;
+        for (int k = 0; k < size; k++) {
+            int c = order != null ? order[k] : k;
+            int col = line.col(c);
+            if (col < x) {
+                continue;
+            }
+            for (; x < col; x++) {
+                sb.append(' ');
+            }
+            String symbol = line.cell(c).symbol();
+            if (symbol.isEmpty()) {
+                continue;
+            }
+            for (int j = 0; j < symbol.length(); j++) {
+                sb.append(Character.toLowerCase(symbol.charAt(j)));
+            }
+            x += Math.max(1, Graphemes.width(symbol, 0, symbol.length()));
+        }
+    }
+
+    // Lower case, one char for one, so offsets in folded text are offsets in the original.
+    static String fold(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            sb.append(Character.toLowerCase(text.charAt(i)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,79 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.text.CharWidth;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class GraphemesTest {
+
+    private static int next(String text, int start) {
+        return Graphemes.next(text, start, text.length());
+    }
+
+    @Test
+    public void testAsciiIsOneCellPerChar() {
+        String text = "ab";
+        assertEquals(1, next(text, 0));
+        assertEquals(1, Graphemes.width(text, 0, 1));
+        assertSame(Graphemes.symbol("xa", 1, 2), Graphemes.symbol(text, 0, 1));
+    }
+
+    @Test
+    public void testCombiningMarkJoinsBase() {
+        String text = "éx";
+        assertEquals(2, next(text, 0));
+        assertEquals(1, Graphemes.width(text, 0, 2));
+        assertEquals("é", Graphemes.symbol(text, 0, 2));
+    }
+
+    @Test
+    public void testSurrogatePairIsOneCluster() {
+        String text = "😀!";
+        assertEquals(2, next(text, 0));
+        assertEquals(2, Graphemes.width(text, 0, 2));
+    }
+
+    @Test
+    public void testEmojiModifierAndZwjSequence() {
+        String thumbs = "👍🏽";
+        assertEquals(thumbs.length(), next(thumbs, 0));
+
+        String family = "👨‍👩‍👧 ";
+        assertEquals(family.length() - 1, next(family, 0));
+        assertEquals(2, Graphemes.width(family, 0, family.length() - 1));
+    }
+
+    @Test
+    public void testRegionalIndicatorsPairUp() {
+        String flags = "🇫🇷🇩🇪";
+        assertEquals(4, next(flags, 0));
+        assertEquals(8, next(flags, 4));
+    }
+
+    @Test
+    public void testCachedWidthsMatchCharWidth() {
+        // Twice, so the second pass reads the cache, including slots shared by several code points
+        for (int pass = 0; pass < 2; pass++) {
+            for (int cp = 0; cp < 0x20000; cp += 7) {
+                if (Character.isSurrogate((char) cp)) continue;
+                assertEquals(CharWidth.of(cp), Graphemes.width(cp), "U+" + Integer.toHexString(cp));
+            }
+        }
+    }
+
+    @Test
+    public void testMeasureSumsClusters() {
+        String text = "naïve café 漢字 e\u0301 👍🏽 👨‍👩‍👧 🇫🇷 \u00ad\tx";
+        int width = 0;
+        for (int i = 0; i < text.length(); ) {
+            int end = next(text, i);
+            width += Graphemes.width(text, i, end);
+            i = end;
+        }
+        assertEquals(width, Graphemes.measure(text, 0, text.length()));
+        assertEquals(5, Graphemes.measure("naïve", 0, 5));
+        assertEquals(4, Graphemes.measure("a漢字b", 1, 3));
+    }
+}
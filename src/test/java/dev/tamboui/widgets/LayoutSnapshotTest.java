@@ -0,0 +1,171 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.buffer.Buffer;
+import dev.tamboui.layout.Rect;
+import dev.tamboui.style.Color;
+import dev.tamboui.style.Style;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LayoutSnapshotTest {
+
+    private static final String MD = "# Intro\n\nSome **bold** text with `code` and a [link](x).\n\n"
+            + "| a | b |\n|---|---|\n| 1 | two |\n\n```java\nint x = 1; // one\n```\n\n"
+            + "## Usage\n\n> quoted\n\n- item\n- [x] done\n";
+
+    private static String[] rows(Markdown widget, Markdown.State state, int width, int height) {
+        Buffer buffer = paint(widget, state, width, height);
+        String[] rows = new String[height];
+        for (int y = 0; y < height; y++) {
+            StringBuilder sb = new StringBuilder();
+            for (int x = 0; x < width; x++) sb.append(buffer.get(x, y));
+            rows[y] = sb.toString();
+        }
+        return rows;
+    }
+
+    private static Buffer paint(Markdown widget, Markdown.State state, int width, int height) {
+        Rect area = new Rect(0, 0, width, height);
+        Buffer buffer = Buffer.empty(area);
+        widget.render(area, buffer, state);
+        return buffer;
+    }
+
+    private static Markdown.State restored(Path snapshot, String text) throws IOException {
+        Markdown.State state = new Markdown.State(text);
+        state.setSnapshot(LayoutSnapshot.open(snapshot));
+        return state;
+    }
+
+    @Test
+    public void testRestoredLayoutPaintsWithoutParsing(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("doc.snap");
+        LayoutSnapshot.write(new Markdown(Style.EMPTY), MD, 30, file);
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State state = restored(file, MD);
+
+        String[] expected = rows(new Markdown(Style.EMPTY), new Markdown.State(MD), 30, 4);
+        assertTrue(Arrays.equals(expected, rows(widget, state, 30, 4)));
+        assertEquals(0, state.parseCacheMisses());
+
+        // Navigation uses the saved headings and source offsets
+        assertTrue(state.scrollToHeading("#usage"));
+        assertEquals("Usage", state.headingAtScrollPosition());
+        assertEquals(MD.indexOf("## Usage"), state.sourceOffsetAtScrollPosition());
+        assertEquals(0, state.parseCacheMisses());
+    }
+
+    @Test
+    public void testRestoredStylesFollowTheElementsTheyCameFrom(@TempDir Path dir) throws IOException {
+        // By default, STRONG and TABLE_HEADER are both bold, and CODE and CODE_BLOCK share colors
+        String md = "**bold** and `code`\n\n| head |\n|---|\n| cell |\n\n```\nblock\n```\n";
+        Path file = dir.resolve("doc.snap");
+        LayoutSnapshot.write(new Markdown(Style.EMPTY, Markdown.Theme.defaults()), md, 30, file);
+        Markdown.Theme theme = Markdown.Theme.defaults()
+                .with(Markdown.Theme.Element.TABLE_HEADER, style -> style.fg(Color.RED))
+                .with(Markdown.Theme.Element.CODE_BLOCK, style -> style.fg(Color.GREEN));
+        Markdown.State state = restored(file, md);
+
+        Buffer actual = paint(new Markdown(Style.EMPTY, theme), state, 30, 10);
+        Buffer expected = paint(new Markdown(Style.EMPTY, theme), new Markdown.State(md), 30, 10);
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 30; x++) {
+                assertEquals(expected.get(x, y), actual.get(x, y), "cell " + x + "," + y);
+            }
+        }
+        assertEquals(0, state.parseCacheMisses());
+    }
+
+    @Test
+    public void testRestoredLayoutKeepsNestedHeadings(@TempDir Path dir) throws IOException {
+        String md = "# Top\n\ntext\n\n> ## Quoted\n\n- ### Listed\n";
+        Path file = dir.resolve("doc.snap");
+        LayoutSnapshot.write(new Markdown(Style.EMPTY), md, 30, file);
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State reference = new Markdown.State(md);
+        rows(widget, reference, 30, 4);
+        Markdown.State state = restored(file, md);
+        rows(widget, state, 30, 4);
+
+        for (String heading : new String[]{"#quoted", "#listed"}) {
+            assertTrue(reference.scrollToHeading(heading));
+            assertTrue(state.scrollToHeading(heading));
+            assertEquals(reference.scrollY(), state.scrollY());
+            assertEquals(reference.headingAtScrollPosition(), state.headingAtScrollPosition());
+        }
+        assertEquals(0, state.parseCacheMisses());
+    }
+
+    @Test
+    public void testOtherKeysFallBackToParsing(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("doc.snap");
+        LayoutSnapshot.write(new Markdown(Style.EMPTY), MD, 30, file);
+
+        Markdown.State otherWidth = restored(file, MD);
+        rows(new Markdown(Style.EMPTY), otherWidth, 40, 10);
+        assertEquals(1, otherWidth.parseCacheMisses());
+
+        Markdown.State otherText = restored(file, MD + "\nmore\n");
+        rows(new Markdown(Style.EMPTY), otherText, 30, 10);
+        assertEquals(1, otherText.parseCacheMisses());
+
+        Markdown.State otherConfig = restored(file, MD);
+        rows(Markdown.builder().configVersion(2).build(), otherConfig, 30, 10);
+        assertEquals(1, otherConfig.parseCacheMisses());
+
+        // Once the text changes, it is laid out as usual
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State edited = restored(file, MD);
+        rows(widget, edited, 30, 40);
+        edited.append("\nappended\n");
+        String[] expected = rows(new Markdown(Style.EMPTY), new Markdown.State(MD + "\nappended\n"), 30, 40);
+        assertTrue(Arrays.equals(expected, rows(widget, edited, 30, 40)));
+        assertEquals(1, edited.parseCacheMisses());
+    }
+
+    @Test
+    public void testCulledWidgetRestoresWithinBudget(@TempDir Path dir) throws IOException {
+        String md = MD.repeat(20);
+        Path file = dir.resolve("doc.snap");
+        LayoutSnapshot.write(Markdown.builder().culling(true).build(), md, 30, file);
+        Markdown widget = Markdown.builder().layoutBudget(200).build();
+        Markdown.State state = restored(file, md);
+        Markdown full = new Markdown(Style.EMPTY);
+        Markdown.State reference = new Markdown.State(md);
+
+        for (int scrollY = 0; scrollY < 400; scrollY += 37) {
+            state.setScrollY(scrollY);
+            reference.setScrollY(scrollY);
+            assertTrue(Arrays.equals(rows(full, reference, 30, 12), rows(widget, state, 30, 12)));
+        }
+        assertEquals(0, state.parseCacheMisses());
+        assertTrue(state.layoutEvictions() > 0);
+    }
+
+    @Test
+    public void testCorruptSnapshotFallsBackToParsing(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("doc.snap");
+        LayoutSnapshot.write(new Markdown(Style.EMPTY), MD, 30, file);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, 60));
+
+        Markdown.State state = restored(file, MD);
+        String[] expected = rows(new Markdown(Style.EMPTY), new Markdown.State(MD), 30, 30);
+        assertTrue(Arrays.equals(expected, rows(new Markdown(Style.EMPTY), state, 30, 30)));
+        assertEquals(1, state.parseCacheMisses());
+
+        Files.writeString(file, "not a snapshot, but long enough to have a header of 48 bytes");
+        assertThrows(IOException.class, () -> LayoutSnapshot.open(file));
+        assertNull(LayoutSnapshot.fromResource(getClass().getClassLoader(), "no/such/snapshot.bin"));
+    }
+}
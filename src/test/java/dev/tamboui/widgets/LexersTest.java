@@ -0,0 +1,56 @@
+package dev.tamboui.widgets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class LexersTest {
+
+    // Tokens of a whole snippet, as element:text, separated by spaces
+    private static String tokens(Markdown.Highlighter highlighter, String code) {
+        CodeTokens tokens = CodeTokens.of(highlighter, code);
+        StringBuilder sb = new StringBuilder();
+        for (int t = 0; t < tokens.count(); t++) {
+            if (t > 0) sb.append(' ');
+            sb.append(tokens.element(t).name().substring("CODE_".length()).toLowerCase())
+                    .append(':').append(code, tokens.start(t), tokens.end(t));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testJava() {
+        assertEquals("keyword:@Override keyword:public keyword:int string:\"a\\\"b\" number:0x1F number:1e-3",
+                tokens(Markdown.Highlighter.JAVA, "@Override public int x = f(\"a\\\"b\", 0x1F, 1e-3);"));
+    }
+
+    @Test
+    public void testJavaCommentsAndTextBlocksSpanLines() {
+        assertEquals("comment:/* a comment:b */ keyword:var string:\"\"\" string:  text string:  \"\"\" comment:// end",
+                tokens(Markdown.Highlighter.JAVA, "/* a\nb */ var s = \"\"\"\n  text\n  \"\"\"; // end\n"));
+    }
+
+    @Test
+    public void testJson() {
+        assertEquals("property:\"name\" string:\"x\" property:\"n\" number:-1.5e3 property:\"ok\" keyword:true",
+                tokens(Markdown.Highlighter.JSON, "{\"name\": \"x\", \"n\": -1.5e3,\n \"ok\" : true}"));
+    }
+
+    @Test
+    public void testYaml() {
+        String yaml = """
+                ---
+                name: demo # comment
+                ports: [80, "x"]
+                - on
+                script: |
+                  echo a: b
+                  # not a comment
+
+                done: 1.5
+                """;
+        assertEquals("keyword:--- property:name comment:# comment property:ports number:80 string:\"x\" keyword:on "
+                        + "property:script string:echo a: b string:# not a comment property:done number:1.5",
+                tokens(Markdown.Highlighter.YAML, yaml));
+    }
+}
@@ -0,0 +1,124 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.buffer.Buffer;
+import dev.tamboui.layout.Rect;
+import dev.tamboui.style.Style;
+import org.commonmark.ext.gfm.tables.TableRow;
+import org.commonmark.node.Heading;
+import org.commonmark.node.Node;
+import org.commonmark.node.Paragraph;
+import org.commonmark.node.Text;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LineIndexTest {
+
+    private static final String DOC = """
+            # Getting Started
+
+            Intro text.
+
+            ## Install it!
+
+            - one
+            - two
+
+            | a | b |
+            |---|---|
+            | 1 | 2 |
+            | 3 | 4 |
+
+            ## Usage
+
+            Last paragraph.
+            """;
+
+    private static Markdown.State rendered(Markdown widget, String text) {
+        Markdown.State state = new Markdown.State(text);
+        Rect area = new Rect(0, 0, 40, 3);
+        widget.render(area, Buffer.empty(area), state);
+        return state;
+    }
+
+    @Test
+    public void testScrollToHeadingByTextOrAnchor() {
+        Markdown.State state = rendered(new Markdown(Style.EMPTY), DOC);
+
+        assertTrue(state.scrollToHeading("Usage"));
+        assertEquals(14, state.scrollY());
+        assertTrue(state.scrollToHeading("#install-it"));
+        assertEquals(4, state.scrollY());
+        assertTrue(state.scrollToHeading("getting started"));
+        assertEquals(0, state.scrollY());
+        assertFalse(state.scrollToHeading("Missing"));
+    }
+
+    @Test
+    public void testHeadingAtScrollPosition() {
+        Markdown.State state = rendered(new Markdown(Style.EMPTY), DOC);
+
+        assertEquals("Getting Started", state.headingAtScrollPosition());
+        state.setScrollY(8);
+        assertEquals("Install it!", state.headingAtScrollPosition());
+        state.setScrollY(18);
+        assertEquals("Usage", state.headingAtScrollPosition());
+        assertNull(rendered(new Markdown(Style.EMPTY), "No headings").headingAtScrollPosition());
+    }
+
+    @Test
+    public void testSourceOffsetsOfNestedBlocksAndTableRows() {
+        Markdown widget = Markdown.builder().culling(true).build();
+        Markdown.State state = rendered(widget, DOC);
+
+        assertTrue(state.scrollToSourceOffset(DOC.indexOf("- two")));
+        assertEquals(7, state.scrollY());
+        assertEquals(DOC.indexOf("- two") + 2, state.sourceOffsetAtScrollPosition());
+
+        assertTrue(state.scrollToSourceOffset(DOC.indexOf("| 3 |") + 3));
+        assertEquals(12, state.scrollY());
+        assertEquals(DOC.indexOf("| 3 |"), state.sourceOffsetAtScrollPosition());
+    }
+
+    @Test
+    public void testHeadingsNestedInQuotesAndListItems() {
+        String md = "Intro.\n\n> ## Quoted Title\n>\n> Body.\n\n- item\n\n  ### In a List\n";
+        Markdown.State state = rendered(new Markdown(Style.EMPTY), md);
+
+        assertTrue(state.scrollToHeading("#quoted-title"));
+        assertEquals(3, state.scrollY());
+        assertEquals("Quoted Title", state.headingAtScrollPosition());
+        assertTrue(state.scrollToHeading("In a List"));
+        assertEquals(md.indexOf("### In a List"), state.sourceOffsetAtScrollPosition());
+        assertEquals("In a List", state.headingAtScrollPosition());
+    }
+
+    @Test
+    public void testNodesMapToRowsAndBack() {
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State state = rendered(widget, DOC);
+        Markdown.Layout layout = state.layout(widget, 40);
+
+        Node item = layout.nodeAt(7);
+        assertInstanceOf(Paragraph.class, item);
+        assertEquals("two", ((Text) item.getFirstChild()).getLiteral());
+        assertEquals(7, layout.rowOf(item));
+        assertEquals(7, layout.rowOf(item.getFirstChild()));
+
+        Node row = layout.nodeAt(12);
+        assertInstanceOf(TableRow.class, row);
+        assertEquals(12, layout.rowOf(row));
+        assertInstanceOf(Heading.class, layout.nodeAt(14));
+    }
+
+    @Test
+    public void testSlug() {
+        assertEquals("getting-started", LineIndex.slug("Getting Started"));
+        assertEquals("install-it", LineIndex.slug("Install it!"));
+        assertEquals("c-and-c", LineIndex.slug("C++ and C#"));
+    }
+}
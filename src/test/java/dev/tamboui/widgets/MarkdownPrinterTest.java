@@ -0,0 +1,115 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.style.Style;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MarkdownPrinterTest {
+
+    private static Path write(Path dir, String name, String text) throws Exception {
+        Path file = dir.resolve(name);
+        Files.writeString(file, text);
+        return file;
+    }
+
+    @Test
+    public void testWritesFilesToOutputDirectory(@TempDir Path dir) throws Exception {
+        Path out = dir.resolve("out");
+        String[] args = {"--width", "30", "--plain", "--out", out.toString(),
+                write(dir, "a.md", "# A\n").toString(), write(dir, "b.md", "- b\n").toString()};
+        PrintStream err = new PrintStream(new ByteArrayOutputStream());
+
+        assertEquals(0, MarkdownPrinter.run(args, System.out, err));
+        assertEquals("# A\n", Files.readString(out.resolve("a.txt")));
+        assertEquals("• b\n", Files.readString(out.resolve("b.txt")));
+    }
+
+    @Test
+    public void testWritesToStandardOutputInOrderAndReportsFailures(@TempDir Path dir) throws Exception {
+        StringBuilder md = new StringBuilder();
+        for (int i = 0; i < 200; i++) md.append("paragraph ").append(i).append("\n\n");
+        String[] args = {"--plain", write(dir, "long.md", md.toString()).toString(),
+                dir.resolve("missing.md").toString(), write(dir, "short.md", "short\n").toString()};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+        assertEquals(1, MarkdownPrinter.run(args, new PrintStream(out), new PrintStream(err)));
+        String text = out.toString(StandardCharsets.UTF_8);
+        assertTrue(text.startsWith("paragraph 0\n"));
+        assertTrue(text.endsWith("paragraph 199\nshort\n"));
+        assertTrue(err.toString(StandardCharsets.UTF_8).contains("missing.md"));
+    }
+
+    @Test
+    public void testCollidingOutputNamesFailWithoutOverwriting(@TempDir Path dir) throws Exception {
+        Files.createDirectories(dir.resolve("a"));
+        Files.createDirectories(dir.resolve("b"));
+        Path out = dir.resolve("out");
+        String[] args = {"--plain", "--out", out.toString(), write(dir, "a/README.md", "# A\n").toString(),
+                write(dir, "b/README.md", "# B\n").toString(), write(dir, "c.md", "c\n").toString()};
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+        assertEquals(1, MarkdownPrinter.run(args, System.out, new PrintStream(err)));
+        assertFalse(Files.exists(out.resolve("README.txt")));
+        assertEquals("c\n", Files.readString(out.resolve("c.txt")));
+        String errors = err.toString(StandardCharsets.UTF_8);
+        assertTrue(errors.contains("a/README.md") && errors.contains("b/README.md"));
+    }
+
+    @Test
+    public void testStreamsEachDocumentAndFlushes(@TempDir Path dir) throws Exception {
+        List<String> flushed = new ArrayList<>();
+        StringWriter out = new StringWriter() {
+            @Override
+            public void flush() {
+                flushed.add(toString());
+            }
+        };
+        MarkdownPrinter printer = new MarkdownPrinter(new Markdown(Style.EMPTY), 20, false);
+
+        List<String> failures = printer.printAll(List.of(write(dir, "a.md", "one\n"), write(dir, "b.md", "two\n")), out, 1);
+        assertTrue(failures.isEmpty());
+        assertEquals(List.of("one\n", "one\ntwo\n"), flushed);
+    }
+
+    @Test
+    public void testManyFilesWithFewJobsFinishInOrder(@TempDir Path dir) throws Exception {
+        List<Path> files = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 400; i++) {
+            files.add(write(dir, i + ".md", "file " + i + "\n"));
+            expected.append("file ").append(i).append('\n');
+        }
+        MarkdownPrinter printer = new MarkdownPrinter(new Markdown(Style.EMPTY), 20, false);
+
+        for (int jobs = 1; jobs <= 3; jobs++) {
+            int j = jobs;
+            StringWriter out = new StringWriter();
+            List<String> failures = assertTimeoutPreemptively(Duration.ofSeconds(20), () -> printer.printAll(files, out, j));
+            assertTrue(failures.isEmpty());
+            assertEquals(expected.toString(), out.toString());
+        }
+    }
+
+    @Test
+    public void testRejectsBadArguments() throws Exception {
+        PrintStream err = new PrintStream(new ByteArrayOutputStream());
+        assertEquals(2, MarkdownPrinter.run(new String[]{"--width"}, System.out, err));
+        assertEquals(2, MarkdownPrinter.run(new String[]{}, System.out, err));
+    }
+}
@@ -3,11 +3,27 @@ package dev.tamboui.widgets;
 import dev.tamboui.buffer.Buffer;
 import dev.tamboui.buffer.Cell;
 import dev.tamboui.layout.Rect;
+import dev.tamboui.style.Color;
 import dev.tamboui.style.Style;
+import org.commonmark.node.FencedCodeBlock;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class MarkdownTest {
 
@@ -177,5 +193,725 @@ public class MarkdownTest {
         String md = "---";
         assertRenderedLineAt(md, 0, "---");
     }
-}
 
+    @Test
+    public void testParsedDocumentIsReusedAcrossFrames() {
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State state = new Markdown.State("# Title\n\nSome text\n\nMore text");
+        Rect area = new Rect(0, 0, 40, 2);
+
+        widget.render(area, new TestBuffer(40, 2).getBuffer(), state);
+        state.scrollDown();
+        widget.render(area, new TestBuffer(40, 2).getBuffer(), state);
+        widget.render(new Rect(0, 0, 20, 2), new TestBuffer(20, 2).getBuffer(), state);
+
+        // Scrolling repaints the cached layout; only the resize asks for the document again
+        assertEquals(1, state.parseCacheMisses());
+        assertEquals(1, state.parseCacheHits());
+    }
+
+    @Test
+    public void testScrollingReusesLayout() {
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State state = new Markdown.State("Line 1\n\nLine 2\n\nLine 3\n\nLine 4");
+        Rect area = new Rect(0, 0, 40, 2);
+
+        widget.render(area, new TestBuffer(40, 2).getBuffer(), state);
+        assertEquals(7, state.maxScrollY());
+
+        state.setScrollY(4);
+        TestBuffer testBuffer = new TestBuffer(40, 2);
+        widget.render(area, testBuffer.getBuffer(), state);
+        assertEquals("Line 3", testBuffer.getLine(0));
+        assertEquals("", testBuffer.getLine(1));
+        assertEquals(1, state.layoutCacheMisses());
+        assertEquals(1, state.layoutCacheHits());
+
+        widget.render(new Rect(0, 0, 30, 2), new TestBuffer(30, 2).getBuffer(), state);
+        assertEquals(2, state.layoutCacheMisses());
+    }
+
+    @Test
+    public void testScrolledTableStaysInsideArea() {
+        String md = """
+                Intro
+
+                | Col1 | Col2 |
+                |---|---|
+                | Val1 | Val2 |""";
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State state = new Markdown.State(md);
+        TestBuffer testBuffer = new TestBuffer(40, 4);
+        Rect area = new Rect(0, 1, 40, 2);
+
+        widget.render(area, testBuffer.getBuffer(), state);
+        state.setScrollY(3);
+        testBuffer = new TestBuffer(40, 4);
+        widget.render(area, testBuffer.getBuffer(), state);
+
+        assertEquals("", testBuffer.getLine(0));
+        assertEquals("|-|-|", testBuffer.getLine(1).replaceAll("\\s+", " ").trim().replaceAll("-{2,}", "-"));
+        assertEquals("| Val1 | Val2 |", testBuffer.getLine(2).replaceAll("\\s+", " ").trim());
+        assertEquals("", testBuffer.getLine(3));
+    }
+
+    @Test
+    public void testSetTextReparsesOnlyOnRealChange() {
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State state = new Markdown.State("Hello");
+        Rect area = new Rect(0, 0, 40, 2);
+
+        widget.render(area, new TestBuffer(40, 2).getBuffer(), state);
+        state.setText(new String("Hello"));
+        widget.render(area, new TestBuffer(40, 2).getBuffer(), state);
+        assertEquals(1, state.parseCacheMisses());
+
+        state.setText("World");
+        TestBuffer testBuffer = new TestBuffer(40, 2);
+        widget.render(area, testBuffer.getBuffer(), state);
+        assertEquals(2, state.parseCacheMisses());
+        assertEquals("World", testBuffer.getLine(0));
+    }
+
+    @Test
+    public void testCullingOnlyLaysOutVisibleBlocks() {
+        StringBuilder md = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            md.append("Paragraph ").append(i).append("\n\n");
+        }
+        Markdown widget = Markdown.builder().baseStyle(Style.EMPTY).culling(true).build();
+        Markdown.State state = new Markdown.State(md.toString());
+        Rect area = new Rect(0, 0, 40, 4);
+
+        widget.render(area, new TestBuffer(40, 4).getBuffer(), state);
+        state.scrollToBottom();
+        TestBuffer testBuffer = new TestBuffer(40, 4);
+        widget.render(area, testBuffer.getBuffer(), state);
+
+        assertEquals(97, state.maxScrollY());
+        assertEquals("", testBuffer.getLine(0));
+        assertEquals("Paragraph 49", testBuffer.getLine(1));
+
+        Markdown.Layout layout = state.layout(widget, 40);
+        assertNotNull(layout.block(0).lines);
+        assertNull(layout.block(25).lines);
+        assertNotNull(layout.block(49).lines);
+    }
+
+    @Test
+    public void testUnchangedBlocksSurviveTextEdits() {
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State state = new Markdown.State("# Title\n\nFirst\n\nSecond");
+        Rect area = new Rect(0, 0, 40, 8);
+        widget.render(area, new TestBuffer(40, 8).getBuffer(), state);
+        Markdown.BlockLayout title = state.layout(widget, 40).block(0);
+        Markdown.BlockLayout second = state.layout(widget, 40).block(2);
+
+        state.setText("# Title\n\nFirst, edited\n\nSecond");
+        TestBuffer testBuffer = new TestBuffer(40, 8);
+        widget.render(area, testBuffer.getBuffer(), state);
+
+        Markdown.Layout layout = state.layout(widget, 40);
+        assertSame(title, layout.block(0));
+        assertNotSame(second, layout.block(1));
+        assertSame(second, layout.block(2));
+        assertEquals("First, edited", testBuffer.getLine(2));
+        assertEquals("Second", testBuffer.getLine(4));
+    }
+
+    @Test
+    public void testAppendRendersLikeSetText() {
+        String md = """
+                # Streaming
+
+                Some text that keeps
+                growing over time.
+
+                - first
+                - second
+                --
+                | a | b |
+                |---|---|
+                | 1 | 2 |
+
+                ```
+                code
+                ```
+                Done""";
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State streamed = new Markdown.State("");
+        Rect area = new Rect(0, 0, 30, 24);
+        for (int i = 0; i < md.length(); i += 3) {
+            streamed.append(md.substring(i, Math.min(md.length(), i + 3)));
+            widget.render(area, new TestBuffer(30, 24).getBuffer(), streamed);
+        }
+        TestBuffer actual = new TestBuffer(30, 24);
+        widget.render(area, actual.getBuffer(), streamed);
+
+        TestBuffer expected = new TestBuffer(30, 24);
+        new Markdown(Style.EMPTY).render(area, expected.getBuffer(), new Markdown.State(md));
+
+        assertEquals(md, streamed.text());
+        for (int y = 0; y < 24; y++) {
+            assertEquals(expected.getLine(y), actual.getLine(y), "Line " + y + " mismatching");
+        }
+    }
+
+    private static void assertRendersLikeSetText(Markdown.State streamed, String md) {
+        Markdown widget = new Markdown(Style.EMPTY);
+        Rect area = new Rect(0, 0, 30, 8);
+        TestBuffer actual = new TestBuffer(30, 8);
+        widget.render(area, actual.getBuffer(), streamed);
+        TestBuffer expected = new TestBuffer(30, 8);
+        widget.render(area, expected.getBuffer(), new Markdown.State(md));
+        for (int y = 0; y < 8; y++) {
+            assertEquals(expected.getLine(y), actual.getLine(y), "Line " + y + " mismatching");
+        }
+    }
+
+    @Test
+    public void testAppendKeepsIndentedTableHeaders() {
+        // A header line indented by four columns continues the paragraph before it
+        Markdown widget = new Markdown(Style.EMPTY);
+        Rect area = new Rect(0, 0, 30, 8);
+        String md = "intro\n    | a | b |\n|---|---|\n";
+        Markdown.State state = new Markdown.State(md);
+        widget.render(area, new TestBuffer(30, 8).getBuffer(), state);
+        state.append("| 1 | 2 |\n");
+        assertRendersLikeSetText(state, md + "| 1 | 2 |\n");
+
+        String tabbed = "intro\n\t| a | b |\n|---|---|\n| 1 | 2 |\n| 3 | 4 |\n";
+        Markdown.State streamed = new Markdown.State("");
+        for (int i = 0; i < tabbed.length(); i++) {
+            streamed.append(tabbed.substring(i, i + 1));
+            widget.render(area, new TestBuffer(30, 8).getBuffer(), streamed);
+        }
+        assertRendersLikeSetText(streamed, tabbed);
+    }
+
+    @Test
+    public void testAppendOnlyReparsesTrailingBlock() {
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State state = new Markdown.State("# Title\n\nFirst paragraph.\n\nSecond\n");
+        Rect area = new Rect(0, 0, 40, 8);
+        widget.render(area, new TestBuffer(40, 8).getBuffer(), state);
+        Markdown.BlockLayout title = state.layout(widget, 40).block(0);
+        Markdown.BlockLayout first = state.layout(widget, 40).block(1);
+
+        state.append("paragraph");
+        TestBuffer testBuffer = new TestBuffer(40, 8);
+        widget.render(area, testBuffer.getBuffer(), state);
+
+        Markdown.Layout layout = state.layout(widget, 40);
+        assertSame(title, layout.block(0));
+        assertSame(first, layout.block(1));
+        assertSame(title.node, layout.block(0).node);
+        assertEquals("Second paragraph", testBuffer.getLine(4));
+        assertEquals(2, state.parseCacheMisses());
+    }
+
+    @Test
+    public void testGraphemeClustersTakeOneCell() {
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State state = new Markdown.State("e\u0301 \uD83D\uDE00 x");
+        TestBuffer testBuffer = new TestBuffer(20, 2);
+        widget.render(new Rect(0, 0, 20, 2), testBuffer.getBuffer(), state);
+
+        assertEquals("e\u0301", testBuffer.getBuffer().get(0, 0).symbol());
+        assertEquals("\uD83D\uDE00", testBuffer.getBuffer().get(2, 0).symbol());
+        assertEquals("x", testBuffer.getBuffer().get(5, 0).symbol());
+    }
+
+    @Test
+    public void testCustomTheme() {
+        Markdown.Theme theme = Markdown.Theme.defaults()
+                .with(Markdown.Theme.Element.HEADING, style -> style.fg(Color.MAGENTA));
+        Markdown widget = new Markdown(Style.EMPTY, theme);
+        Markdown.State state = new Markdown.State("# Title\n\n`code`");
+        TestBuffer testBuffer = new TestBuffer(20, 4);
+        widget.render(new Rect(0, 0, 20, 4), testBuffer.getBuffer(), state);
+
+        assertEquals(Style.EMPTY.fg(Color.MAGENTA), testBuffer.getStyleAt(2, 0));
+        assertEquals(Style.EMPTY.fg(Color.YELLOW).bg(Color.DARK_GRAY), testBuffer.getStyleAt(0, 2));
+    }
+
+    @Test
+    public void testWidgetsShareParsers() {
+        Markdown first = new Markdown(Style.EMPTY);
+        Markdown second = Markdown.builder().build();
+        Markdown.State state = new Markdown.State("Hello");
+        Rect area = new Rect(0, 0, 20, 2);
+
+        first.render(area, new TestBuffer(20, 2).getBuffer(), state);
+        second.render(area, new TestBuffer(20, 2).getBuffer(), state);
+
+        // Same extensions, same parser: the second widget reuses the parsed document
+        assertEquals(1, state.parseCacheMisses());
+        assertSame(Markdown.parser(EnumSet.allOf(Markdown.Extension.class)),
+                Markdown.parser(EnumSet.allOf(Markdown.Extension.class)));
+    }
+
+    @Test
+    public void testDisabledExtensionsAreNotParsed() {
+        String md = "~~Strike~~ https://example.com";
+        Markdown widget = Markdown.builder().extensions(Markdown.Extension.TABLES).build();
+        TestBuffer testBuffer = new TestBuffer(40, 2);
+        widget.render(new Rect(0, 0, 40, 2), testBuffer.getBuffer(), new Markdown.State(md));
+
+        assertEquals("~~Strike~~ https://example.com", testBuffer.getLine(0));
+        assertEquals(Style.EMPTY, testBuffer.getStyleAt(12, 0));
+    }
+
+    @Test
+    public void testAsyncPaintsLastLayoutUntilNextIsReady() throws InterruptedException {
+        Markdown widget = Markdown.builder().async(true).loadingText("Loading...").build();
+        Markdown.State state = new Markdown.State("First");
+        Rect area = new Rect(0, 0, 20, 3);
+
+        TestBuffer testBuffer = new TestBuffer(20, 3);
+        widget.render(area, testBuffer.getBuffer(), state);
+        // The job may finish before render looks for a layout; then it is painted as it is
+        if (testBuffer.getLine(0).isEmpty()) {
+            assertEquals("Loading...", testBuffer.getLine(2));
+        } else {
+            assertEquals("First", testBuffer.getLine(0));
+            assertEquals("", testBuffer.getLine(2));
+        }
+        assertTrue(state.awaitLayout(Duration.ofSeconds(10)));
+
+        // Holding the engine lock keeps the background job from finishing
+        synchronized (state.engineLock) {
+            state.setText("Second");
+            testBuffer = new TestBuffer(20, 3);
+            widget.render(area, testBuffer.getBuffer(), state);
+            assertEquals("First", testBuffer.getLine(0));
+            assertEquals("Loading...", testBuffer.getLine(2));
+        }
+        assertTrue(state.awaitLayout(Duration.ofSeconds(10)));
+
+        testBuffer = new TestBuffer(20, 3);
+        widget.render(area, testBuffer.getBuffer(), state);
+        assertEquals("Second", testBuffer.getLine(0));
+        assertEquals("", testBuffer.getLine(2));
+    }
+
+    @Test
+    public void testAsyncTextChangeCancelsRunningLayout() throws InterruptedException {
+        Markdown widget = Markdown.builder().async(true).build();
+        Markdown.State state = new Markdown.State("One");
+        Rect area = new Rect(0, 0, 20, 2);
+
+        synchronized (state.engineLock) {
+            widget.render(area, new TestBuffer(20, 2).getBuffer(), state);
+            state.setText("Two");
+            state.setText("Three");
+        }
+        assertTrue(state.awaitLayout(Duration.ofSeconds(10)));
+
+        TestBuffer testBuffer = new TestBuffer(20, 2);
+        widget.render(area, testBuffer.getBuffer(), state);
+        assertEquals("Three", testBuffer.getLine(0));
+        assertEquals(1, state.parseCacheMisses());
+    }
+
+    @Test
+    public void testMetricsReportEachRender() {
+        List<Markdown.RenderMetrics> reported = new ArrayList<>();
+        Markdown widget = Markdown.builder().metrics(reported::add).build();
+        Markdown.State state = new Markdown.State("# Title\n\nSome *text*");
+        Rect area = new Rect(0, 0, 20, 4);
+
+        widget.render(area, new TestBuffer(20, 4).getBuffer(), state);
+        Markdown.RenderMetrics first = reported.get(0);
+        assertEquals(1, first.parseCacheMisses());
+        assertEquals(1, first.layoutCacheMisses());
+        assertEquals(2, first.blockCacheMisses());
+        // Heading and its text; paragraph, its text, emphasis and the emphasized text
+        assertEquals(6, first.nodesVisited());
+        assertEquals(2, first.linesLaidOut());
+        assertEquals("Title".length() + 2 + "Some text".length(), first.cellsWritten());
+        assertTrue(first.parseNanos() > 0 && first.layoutNanos() > 0);
+
+        widget.render(area, new TestBuffer(20, 4).getBuffer(), state);
+        Markdown.RenderMetrics second = reported.get(1);
+        assertEquals(1, second.layoutCacheHits());
+        assertEquals(0, second.parseCacheMisses() + second.parseCacheHits());
+        assertEquals(0, second.nodesVisited());
+        assertEquals(first.cellsWritten(), second.cellsWritten());
+    }
+
+    private static String table(int rows) {
+        StringBuilder md = new StringBuilder("| id | name |\n|---|---|\n");
+        for (int i = 0; i < rows; i++) {
+            md.append("| ").append(i).append(" | row ").append(i).append(" |\n");
+        }
+        return md.toString();
+    }
+
+    @Test
+    public void testCulledTableOnlyLaysOutVisibleRows() {
+        Markdown widget = Markdown.builder().culling(true).build();
+        Markdown.State state = new Markdown.State(table(10_000));
+        Rect area = new Rect(0, 0, 20, 5);
+        widget.render(area, new TestBuffer(20, 5).getBuffer(), state);
+
+        state.setScrollY(5_000);
+        TestBuffer testBuffer = new TestBuffer(20, 5);
+        widget.render(area, testBuffer.getBuffer(), state);
+
+        assertEquals("| 4998 | row 4998 |", testBuffer.getLine(0));
+        Markdown.BlockLayout table = state.layout(widget, 20).block(0);
+        long laidOut = table.lines.stream().filter(line -> line != null).count();
+        assertEquals(10, laidOut);
+    }
+
+    @Test
+    public void testStickyTableHeader() {
+        Markdown widget = Markdown.builder().stickyTableHeaders(true).build();
+        Markdown.State state = new Markdown.State(table(50));
+        Rect area = new Rect(0, 0, 20, 5);
+        widget.render(area, new TestBuffer(20, 5).getBuffer(), state);
+
+        state.setScrollY(20);
+        TestBuffer testBuffer = new TestBuffer(20, 5);
+        widget.render(area, testBuffer.getBuffer(), state);
+
+        assertEquals("| id | name   |", testBuffer.getLine(0));
+        assertEquals("|----|--------|", testBuffer.getLine(1));
+        assertEquals("| 20 | row 20 |", testBuffer.getLine(2));
+
+        state.setScrollY(0);
+        testBuffer = new TestBuffer(20, 5);
+        widget.render(area, testBuffer.getBuffer(), state);
+        assertEquals("| 0  | row 0  |", testBuffer.getLine(2));
+    }
+
+    @Test
+    public void testScrollPositionSurvivesResizeAndReload() {
+        StringBuilder md = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            md.append("Paragraph ").append(i).append(" has some words that wrap at narrow widths.\n\n");
+        }
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State state = new Markdown.State(md.toString());
+        widget.render(new Rect(0, 0, 80, 5), new TestBuffer(80, 5).getBuffer(), state);
+        state.scrollToSourceOffset(md.indexOf("Paragraph 20 "));
+
+        TestBuffer testBuffer = new TestBuffer(20, 5);
+        widget.render(new Rect(0, 0, 20, 5), testBuffer.getBuffer(), state);
+        assertEquals("Paragraph 20 has", testBuffer.getLine(0).strip());
+
+        state.setText("# Title\n\nNew intro.\n\n" + md);
+        testBuffer = new TestBuffer(20, 5);
+        widget.render(new Rect(0, 0, 20, 5), testBuffer.getBuffer(), state);
+        assertEquals("Paragraph 20 has", testBuffer.getLine(0).strip());
+    }
+
+    @Test
+    public void testFileStateOnlyLaysOutChunksNearTheViewport(@TempDir Path dir) throws IOException {
+        StringBuilder md = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            md.append("## Part ").append(i).append("\n\n```\ncode ").append(i).append("\n\nmore\n```\n\n");
+        }
+        Path path = dir.resolve("big.md");
+        Files.writeString(path, md);
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State memory = new Markdown.State(md.toString());
+        Markdown.State file = Markdown.State.fromPath(path, 256);
+        Rect area = new Rect(0, 0, 20, 5);
+        widget.render(area, Buffer.empty(area), memory);
+        widget.render(area, Buffer.empty(area), file);
+
+        Markdown.Layout layout = file.layout(widget, 20);
+        int laidOut = 0;
+        for (int i = 0; i < layout.blockCount(); i++) {
+            if (layout.block(i).node instanceof FencedCodeBlock) laidOut++;
+        }
+        assertTrue(laidOut > 0 && laidOut < 20, "code blocks laid out: " + laidOut);
+
+        int offset = md.indexOf("## Part 150");
+        memory.scrollToSourceOffset(offset);
+        file.scrollToSourceOffset(offset);
+        TestBuffer expected = new TestBuffer(20, 5);
+        TestBuffer actual = new TestBuffer(20, 5);
+        widget.render(area, expected.getBuffer(), memory);
+        widget.render(area, actual.getBuffer(), file);
+        for (int y = 0; y < 5; y++) {
+            assertEquals(expected.getLine(y), actual.getLine(y));
+        }
+        assertEquals("## Part 150", actual.getLine(0).strip());
+    }
+
+    @Test
+    public void testLayoutBudgetEvictsBlocksOutOfView() {
+        StringBuilder md = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            md.append("Paragraph ").append(i).append("\n\n");
+        }
+        Markdown widget = Markdown.builder().layoutBudget(60).build();
+        Markdown.State state = new Markdown.State(md.toString());
+        Rect area = new Rect(0, 0, 20, 4);
+        for (int y = 0; y <= 60; y += 4) {
+            state.setScrollY(y);
+            widget.render(area, new TestBuffer(20, 4).getBuffer(), state);
+            assertTrue(state.layoutCells() <= 60, "cells held: " + state.layoutCells());
+        }
+        assertTrue(state.layoutEvictions() > 0);
+
+        // Evicted blocks keep their height and are laid out again when back in view
+        state.setScrollY(4);
+        TestBuffer testBuffer = new TestBuffer(20, 4);
+        widget.render(area, testBuffer.getBuffer(), state);
+        assertEquals("Paragraph 2", testBuffer.getLine(0).strip());
+        Markdown.State unbounded = new Markdown.State(md.toString());
+        new Markdown(Style.EMPTY).render(area, new TestBuffer(20, 4).getBuffer(), unbounded);
+        assertEquals(unbounded.maxScrollY(), state.maxScrollY());
+    }
+
+    @Test
+    public void testLayoutBudgetForgetsBlocksOfReplacedLayouts() {
+        Markdown widget = Markdown.builder().layoutBudget(200).build();
+        Markdown.State state = new Markdown.State("");
+        Rect area = new Rect(0, 0, 20, 8);
+        String md = "";
+        for (int edit = 0; edit < 10; edit++) {
+            md = "Edit " + edit + "\n\nFirst\n\nSecond " + edit + "\n";
+            state.setText(md);
+            widget.render(area, new TestBuffer(20, 8).getBuffer(), state);
+        }
+        Markdown.State fresh = new Markdown.State(md);
+        widget.render(area, new TestBuffer(20, 8).getBuffer(), fresh);
+
+        assertEquals(fresh.layoutCells(), state.layoutCells());
+        assertEquals(0, state.layoutEvictions());
+    }
+
+    @Test
+    public void testIncrementalPaintOnlyWritesChangedCells() {
+        List<Markdown.RenderMetrics> reported = new ArrayList<>();
+        Markdown widget = Markdown.builder().incrementalPaint(true).metrics(reported::add).build();
+        Markdown.State state = new Markdown.State("# Title\n\nFirst paragraph.\n\nSecond paragraph.\n");
+        Rect area = new Rect(0, 0, 20, 3);
+        TestBuffer testBuffer = new TestBuffer(20, 3);
+
+        widget.render(area, testBuffer.getBuffer(), state);
+        assertTrue(state.frameChanged());
+        widget.render(area, testBuffer.getBuffer(), state);
+        assertFalse(state.frameChanged());
+        assertEquals(0, reported.get(1).cellsWritten());
+
+        state.setScrollY(2);
+        widget.render(area, testBuffer.getBuffer(), state);
+        assertTrue(state.frameChanged());
+        TestBuffer expected = new TestBuffer(20, 3);
+        new Markdown(Style.EMPTY).render(area, expected.getBuffer(), state);
+        for (int y = 0; y < 3; y++) {
+            assertEquals(expected.getLine(y), testBuffer.getLine(y));
+        }
+    }
+
+    @Test
+    public void testHighlightedCodeIsTokenizedOnce() {
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State state = new Markdown.State("```java\nreturn 42; // done\n```\n");
+        TestBuffer testBuffer = new TestBuffer(20, 4);
+        widget.render(new Rect(0, 0, 20, 4), testBuffer.getBuffer(), state);
+
+        Style code = Style.EMPTY.fg(Color.YELLOW).bg(Color.DARK_GRAY);
+        assertEquals(code.fg(Color.MAGENTA).bold(), testBuffer.getStyleAt(0, 0));
+        assertEquals(code, testBuffer.getStyleAt(6, 0));
+        assertEquals(code.fg(Color.CYAN), testBuffer.getStyleAt(7, 0));
+        assertEquals(code.fg(Color.GRAY).italic(), testBuffer.getStyleAt(11, 0));
+        CodeTokens tokens = state.codeTokens.values().iterator().next();
+
+        // A new width lays the block out again, from the same tokens
+        widget.render(new Rect(0, 0, 12, 4), new TestBuffer(12, 4).getBuffer(), state);
+        assertSame(tokens, state.codeTokens.values().iterator().next());
+    }
+
+    @Test
+    public void testCodeWrapsWithoutWordBreaks() {
+        Markdown widget = Markdown.builder().highlighter("java", null).build();
+        Markdown.State state = new Markdown.State("```java\nSystem.out.println(x);\n```\n");
+        TestBuffer testBuffer = new TestBuffer(10, 4);
+        widget.render(new Rect(0, 0, 10, 4), testBuffer.getBuffer(), state);
+
+        assertEquals("System.out", testBuffer.getLine(0));
+        assertEquals(".println(x", testBuffer.getLine(1));
+        assertEquals(");", testBuffer.getLine(2));
+        assertTrue(state.codeTokens.isEmpty());
+    }
+
+    @Test
+    public void testHorizontalScrollPansCodeAndTablesOnly() {
+        Markdown widget = Markdown.builder().horizontalScroll(true).incrementalPaint(true).build();
+        String md = "Intro text\n\n```\n0123456789ABCDEFGHIJ\n```\n\n| a | b |\n|---|---|\n| long cell text | x |\n";
+        Markdown.State state = new Markdown.State(md);
+        Rect area = new Rect(0, 0, 10, 8);
+        TestBuffer testBuffer = new TestBuffer(10, 8);
+
+        widget.render(area, testBuffer.getBuffer(), state);
+        assertEquals("0123456789", testBuffer.getLine(2));
+        assertEquals("| long cel", testBuffer.getLine(7));
+        assertEquals(12, state.maxScrollX());
+        long misses = state.layoutCacheMisses();
+
+        state.setScrollX(5);
+        widget.render(area, testBuffer.getBuffer(), state);
+        assertEquals("Intro text", testBuffer.getLine(0));
+        assertEquals("56789ABCDE", testBuffer.getLine(2));
+        assertEquals("g cell tex", testBuffer.getLine(7));
+
+        state.setScrollX(12);
+        widget.render(area, testBuffer.getBuffer(), state);
+        assertEquals("CDEFGHIJ", testBuffer.getLine(2));
+        assertEquals("| b |", testBuffer.getLine(5).strip());
+        assertEquals("text | x |", testBuffer.getLine(7));
+        assertEquals(misses, state.layoutCacheMisses());
+
+        state.setScrollX(100);
+        assertEquals(12, state.scrollX());
+    }
+
+    @Test
+    public void testParallelLayoutMatchesSerialLayout() {
+        StringBuilder md = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            md.append("## Part ").append(i).append("\n\nSome *text* with `code` and $x^2$.\n\n")
+                    .append("| a | b |\n|---|---|\n| ").append(i).append(" | two |\n\n")
+                    .append("```java\nint x = ").append(i).append(";\n```\n\n- item\n- [x] done\n\n");
+        }
+        Markdown.State serial = new Markdown.State(md.toString());
+        Markdown.State parallel = new Markdown.State(md.toString());
+        Rect area = new Rect(0, 0, 24, 30);
+        TestBuffer expected = new TestBuffer(24, 30);
+        TestBuffer actual = new TestBuffer(24, 30);
+        new Markdown(Style.EMPTY).render(area, expected.getBuffer(), serial);
+        Markdown.builder().parallelLayout(true).build().render(area, actual.getBuffer(), parallel);
+
+        assertEquals(serial.maxScrollY(), parallel.maxScrollY());
+        for (int y = 0; y < 30; y++) {
+            assertEquals(expected.getLine(y), actual.getLine(y));
+        }
+    }
+
+    @Test
+    public void testPrintWritesTheRowsRenderWould() throws IOException {
+        String md = "# Title\n\nSome *text* that wraps at twenty columns.\n\n"
+                + "| a | b |\n|---|---|\n| 1 | two |\n\n```java\nint x = 1;\n```\n\n> quoted\n\n- item\n";
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State state = new Markdown.State(md);
+        StringBuilder out = new StringBuilder();
+        widget.print(state, 20, out, false);
+
+        String[] printed = out.toString().split("\n", -1);
+        TestBuffer buffer = new TestBuffer(20, printed.length - 1);
+        widget.render(new Rect(0, 0, 20, printed.length - 1), buffer.getBuffer(), new Markdown.State(md));
+        assertEquals("", printed[printed.length - 1]);
+        assertEquals("# Title", printed[0]);
+        for (int y = 0; y < printed.length - 1; y++) {
+            assertEquals(buffer.getLine(y), printed[y].strip());
+            assertEquals(printed[y].stripTrailing(), printed[y]);
+        }
+
+        // Culled and within a budget, blocks are laid out a batch of rows at a time
+        StringBuilder culled = new StringBuilder();
+        String doc = md.repeat(20);
+        widget.print(new Markdown.State(doc), 20, out.delete(0, out.length()), false);
+        Markdown.builder().layoutBudget(200).build().print(new Markdown.State(doc), 20, culled, false);
+        assertEquals(out.toString(), culled.toString());
+    }
+
+    @Test
+    public void testPrintAnsiResetsStylesAtLineEnds() throws IOException {
+        String md = "# Title\n\nplain and **bold**\n";
+        Markdown widget = new Markdown(Style.EMPTY);
+        StringBuilder ansi = new StringBuilder();
+        StringBuilder plain = new StringBuilder();
+        widget.print(new Markdown.State(md), 30, ansi, true);
+        widget.print(new Markdown.State(md), 30, plain, false);
+
+        String[] lines = ansi.toString().split("\n");
+        assertTrue(lines[0].startsWith("\u001b[0;"));
+        assertTrue(lines[0].endsWith("\u001b[0m"));
+        // Without its escapes and trailing blanks, each line is the plain text
+        String stripped = ansi.toString().replaceAll("\u001b\\[[0-9;]*m", "").replaceAll(" +\n", "\n");
+        assertEquals(plain.toString(), stripped);
+    }
+
+    @Test
+    public void testFindScrollsToMatchesAndHighlightsThem() {
+        StringBuilder md = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            md.append("Paragraph ").append(i).append(i == 25 ? " mentions the Needle" : "").append("\n\n");
+        }
+        md.append("```\nneedle in code\n```\n");
+        Markdown widget = new Markdown(Style.EMPTY);
+        Markdown.State state = new Markdown.State(md.toString());
+        TestBuffer testBuffer = new TestBuffer(40, 5);
+        Rect area = new Rect(0, 0, 40, 5);
+        widget.render(area, testBuffer.getBuffer(), state);
+
+        Markdown.SearchMatch match = state.find("NEEDLE");
+        assertEquals(2, state.matchCount());
+        assertEquals(50, match.row());
+        assertEquals("Paragraph 25 mentions the ".length(), match.column());
+        assertEquals(6, match.width());
+        assertEquals(md.indexOf("Paragraph 25"), match.sourceOffset());
+        assertEquals(50, state.scrollY());
+
+        testBuffer = new TestBuffer(40, 5);
+        widget.render(area, testBuffer.getBuffer(), state);
+        assertEquals("Paragraph 25 mentions the Needle", testBuffer.getLine(0));
+        Style current = Markdown.Theme.defaults().apply(Markdown.Theme.Element.SEARCH_CURRENT, Style.EMPTY);
+        assertEquals(current, testBuffer.getStyleAt(match.column(), 0));
+        assertEquals(Style.EMPTY, testBuffer.getStyleAt(0, 0));
+
+        assertEquals(80, state.next().row());
+        assertEquals(match.row(), state.next().row());
+        assertEquals(80, state.previous().row());
+
+        state.clearSearch();
+        assertNull(state.next());
+        assertNull(state.find("haystack"));
+    }
+
+    @Test
+    public void testSearchFollowsAppendedText() {
+        Markdown widget = Markdown.builder().culling(true).build();
+        Markdown.State state = new Markdown.State("alpha\n\nbeta\n\n");
+        Rect area = new Rect(0, 0, 20, 3);
+        widget.render(area, Buffer.empty(area), state);
+        assertNull(state.find("gamma"));
+
+        state.append("gamma\n\nGamma ray\n");
+        widget.render(area, Buffer.empty(area), state);
+        assertEquals(2, state.matchCount());
+        Markdown.SearchMatch first = state.next();
+        assertEquals(4, first.row());
+        assertEquals(0, first.column());
+        assertEquals(6, state.next().row());
+    }
+
+    @Test
+    public void testSearchFindsCulledAndEvictedBlocks() {
+        StringBuilder md = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            md.append("Paragraph ").append(i).append(i % 100 == 99 ? " marker" : "").append("\n\n");
+        }
+        Markdown widget = Markdown.builder().layoutBudget(100).build();
+        Markdown.State state = new Markdown.State(md.toString());
+        Rect area = new Rect(0, 0, 30, 4);
+        widget.render(area, Buffer.empty(area), state);
+
+        Markdown.SearchMatch match = state.find("marker");
+        assertEquals(3, state.matchCount());
+        assertEquals(198, match.row());
+        assertEquals(398, state.next().row());
+        assertEquals(598, state.next().row());
+
+        TestBuffer testBuffer = new TestBuffer(30, 4);
+        widget.render(area, testBuffer.getBuffer(), state);
+        assertEquals("Paragraph 299 marker", testBuffer.getLine(598 - state.scrollY()));
+    }
+}
@@ -0,0 +1,42 @@
+package dev.tamboui.widgets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class MathTokensTest {
+
+    // Runs of a line as C[...] for commands and M[...] for plain math
+    private static String runs(MathTokens.MathLine line) {
+        StringBuilder sb = new StringBuilder();
+        for (MathTokens.Segment segment : line.segments()) {
+            sb.append(segment.command() ? "C[" : "M[").append(line.text(), segment.start(), segment.end()).append(']');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testCommandsAndEscapes() {
+        MathTokens math = MathTokens.inline("\\frac{a}{b} + \\{x\\}");
+        assertEquals("C[frac]M[{a}{b} + ]M[{]M[x]M[}]", runs(math.lines()[0]));
+    }
+
+    @Test
+    public void testHiddenMarkup() {
+        MathTokens math = MathTokens.inline("\\left( a & b \\right) \\quad c\\\\");
+        assertEquals("M[( a ]M[ b ]M[) ]M[ c]", runs(math.lines()[0]));
+    }
+
+    @Test
+    public void testDisplayDropsLinesWithNothingVisible() {
+        MathTokens math = MathTokens.display("\\begin{aligned}\nx &= 1 \\\\ y &= 2\\ \n\\end{aligned}\n");
+        assertEquals(2, math.lines().length);
+        assertEquals("M[x ]M[= 1 ]", runs(math.lines()[0]));
+        assertEquals("M[ y ]M[= 2]", runs(math.lines()[1]));
+    }
+
+    @Test
+    public void testBackslashBeforeLineEndIsPlain() {
+        assertEquals("M[a\\]", runs(MathTokens.inline("a\\").lines()[0]));
+    }
+}
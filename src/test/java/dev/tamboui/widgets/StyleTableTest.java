@@ -0,0 +1,28 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.style.Color;
+import dev.tamboui.style.Style;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class StyleTableTest {
+
+    @Test
+    public void testDerivedStylesAreComputedOnce() {
+        StyleTable styles = new StyleTable(Style.EMPTY, Markdown.Theme.defaults());
+        Style link = styles.derive(Style.EMPTY, Markdown.Theme.Element.LINK);
+
+        assertEquals(Style.EMPTY.fg(Color.BLUE).underlined(), link);
+        assertSame(link, styles.derive(Style.EMPTY, Markdown.Theme.Element.LINK));
+        assertSame(styles.derive(link, Markdown.Theme.Element.STRONG),
+                styles.derive(styles.derive(Style.EMPTY, Markdown.Theme.Element.LINK), Markdown.Theme.Element.STRONG));
+    }
+
+    @Test
+    public void testAsciiCellsAreSharedPerStyle() {
+        StyleTable styles = new StyleTable(Style.EMPTY, Markdown.Theme.defaults());
+        assertSame(styles.asciiCells(Style.EMPTY.bold()), styles.asciiCells(Style.EMPTY.bold()));
+    }
+}
@@ -0,0 +1,61 @@
+package dev.tamboui.widgets;
+
+import dev.tamboui.buffer.Buffer;
+import dev.tamboui.layout.Rect;
+import dev.tamboui.style.Style;
+import org.commonmark.ext.gfm.tables.TableBlock;
+import org.commonmark.node.Node;
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class TableMeasureTest {
+
+    private static TableBlock table(String md) {
+        Node document = Markdown.parser(EnumSet.allOf(Markdown.Extension.class)).parse(md);
+        return (TableBlock) document.getFirstChild();
+    }
+
+    @Test
+    public void testIntrinsicWidthsCountPrintedText() {
+        TableBlock table = table("""
+                | a | **bold** `code` | |
+                |---|---|---|
+                | 漢字 | x | ![alt](u) |
+                """);
+        TableMeasure measure = TableMeasure.of(table, 3);
+        // "![Image](u)" for the image; empty columns still get one cell
+        assertArrayEquals(new int[]{4, 9, 11}, measure.intrinsicWidths());
+    }
+
+    @Test
+    public void testNarrowColumnsKeepTheirWidth() {
+        TableMeasure measure = TableMeasure.of(table("| a | bbbbbbbbbb | cccccccccc |\n|---|---|---|\n"), 3);
+        assertArrayEquals(new int[]{1, 10, 10}, measure.columnWidths(40));
+        // 20 cells for contents: the narrow column first, then a fair share each
+        assertArrayEquals(new int[]{1, 9, 10}, measure.columnWidths(30));
+    }
+
+    @Test
+    public void testMeasuresAreReusedAcrossWidths() {
+        Markdown widget = Markdown.builder().culling(true).build();
+        Markdown.State state = new Markdown.State("| a | b |\n|---|---|\n| 1 | 2 |\n");
+        widget.render(new Rect(0, 0, 40, 0), Buffer.empty(new Rect(0, 0, 40, 1)), state);
+        Node table = state.layout(widget, 40).block(0).node;
+        TableMeasure measure = state.tableMeasures.get(table);
+        assertNotNull(measure.heights(new int[]{1, 1}));
+        assertNull(measure.heights(new int[]{1, 2}));
+
+        widget.render(new Rect(0, 0, 30, 0), Buffer.empty(new Rect(0, 0, 30, 1)), state);
+        assertSame(measure, state.tableMeasures.get(table));
+        // Header, separator, one row
+        assertArrayEquals(new int[]{1, 1}, measure.heights(new int[]{1, 1}).rowHeights());
+        assertEquals(3, measure.heights(new int[]{1, 1}).height());
+    }
+}
@@ -0,0 +1,25 @@
+package dev.tamboui.widgets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TextBufferTest {
+
+    @Test
+    public void testViewsKeepTheirTextWhileAppending() {
+        TextBuffer buffer = new TextBuffer("# Title\n");
+        CharSequence before = buffer.view();
+        for (int i = 0; i < 100; i++) {
+            buffer.append(new StringBuilder("line ").append(i).append('\n'));
+        }
+
+        assertEquals("# Title\n", before.toString());
+        assertEquals(8, before.length());
+        assertEquals("Title", before.subSequence(2, 7).toString());
+        assertThrows(IndexOutOfBoundsException.class, () -> before.charAt(8));
+        assertEquals("line 99\n", buffer.view().subSequence(buffer.length() - 8, buffer.length()).toString());
+        assertEquals(buffer.toString(), buffer.view().toString());
+    }
+}